@@ -0,0 +1,298 @@
+package com.nianzuochen.nio;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接缓冲区池
+ *
+ * 一、为什么要池化
+ *      每次读事件都 allocate() 一个新缓冲区会产生大量垃圾；非直接缓冲区读写通道时，JDK 还要在本地内存中再复制一次。
+ *      直接缓冲区分配和回收都很慢，所以分配一次，反复使用。
+ *
+ * 二、大小分级
+ *      按 2 的幂分级（默认 1K、2K、4K ... 1M），acquire(size) 返回能容纳 size 的最小一级，limit 设为 size。
+ *      超过最大一级的请求直接分配，release 时立即释放，不进池。
+ *
+ * 三、两层缓存
+ *      每个线程有自己的小缓存（每级 threadCacheSize 个），不需要任何同步；
+ *      线程缓存满了或者空了再访问全局的无锁队列（每级最多 globalCacheSize 个）。
+ *
+ * 四、泄漏检测（leakDetection 为 true 或 -DbufferPool.leakDetection=true 时开启）
+ *      记录每个借出缓冲区的分配位置，缓冲区没有 release 就被 GC 回收时打印分配位置；
+ *      重复 release 或者 release 不是从池里借出的缓冲区时抛出 IllegalStateException。
+ *      需要记录调用栈，开销较大，只在排查问题时开启。
+ *
+ * 五、计数器：命中、未命中、借出的缓冲区个数和字节数、泄漏个数
+ */
+public class BufferPool {
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, 8, 64,
+            Boolean.getBoolean("bufferPool.leakDetection"));
+
+    // 进程内共享的池
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    private final int minShift;
+    private final int maxSize;
+    private final int threadCacheSize;
+    private final int globalCacheSize;
+    private final Queue<ByteBuffer>[] globalCaches;
+    private final AtomicInteger[] globalCounts;
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong buffersOutstanding = new AtomicLong();
+    private final AtomicLong bytesOutstanding = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private final boolean leakDetection;
+    private final ConcurrentHashMap<LeakRef, LeakRef> tracked;
+    private final ReferenceQueue<ByteBuffer> collected;
+
+    public BufferPool() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, 8, 64, false);
+    }
+
+    /**
+     * @param minSize         最小一级，2 的幂
+     * @param maxSize         最大一级，2 的幂
+     * @param threadCacheSize 每个线程每级缓存的个数
+     * @param globalCacheSize 全局每级缓存的个数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, int threadCacheSize, int globalCacheSize, boolean leakDetection) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("minSize: " + minSize + ", maxSize: " + maxSize);
+        }
+        this.minShift = Integer.numberOfTrailingZeros(minSize);
+        this.maxSize = maxSize;
+        this.threadCacheSize = threadCacheSize;
+        this.globalCacheSize = globalCacheSize;
+
+        final int classes = Integer.numberOfTrailingZeros(maxSize) - minShift + 1;
+        this.globalCaches = new Queue[classes];
+        this.globalCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            globalCaches[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            globalCounts[i] = new AtomicInteger();
+        }
+        this.threadCache = new ThreadLocal<ThreadCache>() {
+            @Override
+            protected ThreadCache initialValue() {
+                return new ThreadCache(classes, BufferPool.this.threadCacheSize);
+            }
+        };
+
+        this.leakDetection = leakDetection;
+        this.tracked = leakDetection ? new ConcurrentHashMap<LeakRef, LeakRef>() : null;
+        this.collected = leakDetection ? new ReferenceQueue<ByteBuffer>() : null;
+    }
+
+    /**
+     * 借出一个至少 size 字节的直接缓冲区，position 为 0，limit 为 size
+     * 用完后必须调用 release()，release 之后不能再使用
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+
+        ByteBuffer buf = null;
+        int index = indexOf(size);
+        if (index >= 0) {
+            buf = threadCache.get().pop(index);
+            if (buf == null) {
+                buf = globalCaches[index].poll();
+                if (buf != null) {
+                    globalCounts[index].decrementAndGet();
+                }
+            }
+        }
+
+        if (buf != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            buf = ByteBuffer.allocateDirect(index >= 0 ? 1 << (index + minShift) : size);
+        }
+
+        buf.clear();
+        buf.limit(size);
+        buffersOutstanding.incrementAndGet();
+        bytesOutstanding.addAndGet(buf.capacity());
+        if (leakDetection) {
+            track(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * 归还 acquire() 借出的缓冲区
+     */
+    public void release(ByteBuffer buf) {
+        if (leakDetection) {
+            untrack(buf);
+        }
+        buffersOutstanding.decrementAndGet();
+        bytesOutstanding.addAndGet(-buf.capacity());
+
+        int index = buf.capacity() > maxSize ? -1 : indexOf(buf.capacity());
+        if (index < 0 || (1 << (index + minShift)) != buf.capacity()) {
+            // 超过最大一级，或者不是池中的大小
+            DirectBuffers.unmap(buf);
+            return;
+        }
+
+        if (threadCache.get().push(index, buf)) {
+            return;
+        }
+        if (globalCounts[index].incrementAndGet() <= globalCacheSize) {
+            globalCaches[index].offer(buf);
+        } else {
+            globalCounts[index].decrementAndGet();
+            DirectBuffers.unmap(buf);
+        }
+    }
+
+    // 大小对应的级别，超过最大一级返回 -1
+    private int indexOf(int size) {
+        if (size > maxSize) {
+            return -1;
+        }
+        if (size <= 1 << minShift) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getBuffersOutstanding() {
+        return buffersOutstanding.get();
+    }
+
+    public long getBytesOutstanding() {
+        return bytesOutstanding.get();
+    }
+
+    // 检测到的泄漏个数，只有开启泄漏检测时才会增加
+    public long getLeaks() {
+        if (leakDetection) {
+            drainCollected();
+        }
+        return leaks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses()
+                + ", buffersOutstanding=" + getBuffersOutstanding()
+                + ", bytesOutstanding=" + getBytesOutstanding() + ", leaks=" + getLeaks() + "]";
+    }
+
+    private void track(ByteBuffer buf) {
+        drainCollected();
+        LeakRef ref = new LeakRef(buf, collected, new Throwable("buffer acquired here"));
+        tracked.put(ref, ref);
+    }
+
+    private void untrack(ByteBuffer buf) {
+        if (tracked.remove(new LeakRef(buf, null, null)) == null) {
+            throw new IllegalStateException("buffer released twice or not acquired from this pool");
+        }
+    }
+
+    // 已经被 GC 回收却还在 tracked 中的，就是没有 release 的
+    private void drainCollected() {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = collected.poll()) != null) {
+            LeakRef leak = tracked.remove(ref);
+            if (leak != null) {
+                leaks.incrementAndGet();
+                buffersOutstanding.decrementAndGet();
+                bytesOutstanding.addAndGet(-leak.capacity);
+                System.err.println("LEAK: pooled ByteBuffer(" + leak.capacity + ") was garbage collected without release()");
+                leak.trace.printStackTrace();
+            }
+        }
+    }
+
+    // 按对象本身（而不是内容）比较的弱引用，ByteBuffer 的 equals 和 hashCode 是按内容计算的
+    private static class LeakRef extends WeakReference<ByteBuffer> {
+        private final int hash;
+        private final int capacity;
+        private final Throwable trace;
+
+        LeakRef(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue, Throwable trace) {
+            super(buf, queue);
+            this.hash = System.identityHashCode(buf);
+            this.capacity = buf.capacity();
+            this.trace = trace;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LeakRef)) {
+                return false;
+            }
+            ByteBuffer buf = get();
+            return buf != null && buf == ((LeakRef) obj).get();
+        }
+    }
+
+    // 线程本地缓存，每级一个栈
+    private static class ThreadCache {
+        private final ByteBuffer[][] stacks;
+        private final int[] counts;
+
+        ThreadCache(int classes, int size) {
+            stacks = new ByteBuffer[classes][size];
+            counts = new int[classes];
+        }
+
+        ByteBuffer pop(int index) {
+            if (counts[index] == 0) {
+                return null;
+            }
+            ByteBuffer buf = stacks[index][--counts[index]];
+            stacks[index][counts[index]] = null;
+            return buf;
+        }
+
+        boolean push(int index, ByteBuffer buf) {
+            if (counts[index] == stacks[index].length) {
+                return false;
+            }
+            stacks[index][counts[index]++] = buf;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 流式字符集转换：从一个通道读取，转换编码后写到另一个通道（例如 GBK -> UTF-8）
+ *
+ * 一、TestChannel.test6 中 encode()/decode() 一次把整个输入转换完，输出全部放在内存中，大文件无法使用。
+ *      这里的编码器、解码器和三个缓冲区（字节输入、字符、字节输出）在整个转换过程中复用，内存占用固定。
+ *
+ * 二、多字节字符被缓冲区截断时，解码器会把不完整的字节留在输入缓冲区中，compact() 之后和下一次读取的数据拼起来。
+ *
+ * 三、ASCII 快速路径：源和目标字符集都兼容 ASCII 时，连续的 7 位字节直接复制到输出缓冲区，不经过解码器和编码器。
+ *      GBK 等编码的第二个字节可能落在 ASCII 范围内，所以非 ASCII 部分交给解码器后，
+ *      必须等解码器停在完整的字符边界上，才能继续走快速路径。
+ *
+ * 四、无法解码或者无法编码的字符用替换字符代替（日志转换不希望因为个别坏字节中断）。
+ *      缓冲区使用非直接缓冲区，JDK 的编解码器对有底层数组的缓冲区有快速实现。
+ *      源通道和目标通道必须是阻塞模式。
+ */
+public class ChannelTranscoder {
+    // 快速路径要求源和目标都兼容 ASCII，并且多字节字符的第一个字节都不在 ASCII 范围内
+    private static final Set<String> ASCII_COMPATIBLE = new HashSet<String>(Arrays.asList(
+            "US-ASCII", "ISO-8859-1", "UTF-8", "GBK", "GB2312", "GB18030", "Big5", "EUC-KR", "EUC-JP", "windows-1252"));
+
+    // 一个字符最多占用的字节数（UTF-8、GB18030 都是 4）
+    private static final int MAX_BYTES_PER_CHAR = 4;
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private final boolean asciiFastPath;
+    private final ByteBuffer in;
+    private final CharBuffer chars;
+    private final ByteBuffer out;
+
+    private WritableByteChannel target;
+    private long written;
+
+    public ChannelTranscoder(Charset from, Charset to) {
+        this(from, to, 64 * 1024);
+    }
+
+    public ChannelTranscoder(Charset from, Charset to, int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        }
+        this.decoder = from.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoder = to.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiFastPath = isAsciiCompatible(from) && isAsciiCompatible(to);
+        this.in = ByteBuffer.allocate(bufferSize);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.out = ByteBuffer.allocate(bufferSize);
+    }
+
+    public static boolean isAsciiCompatible(Charset charset) {
+        return ASCII_COMPATIBLE.contains(charset.name());
+    }
+
+    /**
+     * 读取 source 直到结束，转换后写入 target，可以重复调用
+     *
+     * @return 写入 target 的字节数
+     */
+    public long transcode(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        this.target = target;
+        this.written = 0;
+        decoder.reset();
+        encoder.reset();
+        in.clear();
+        chars.clear();
+        out.clear();
+
+        // 1. 读一块，转换能转换的部分，不完整的字符留到下一轮
+        while (source.read(in) != -1) {
+            in.flip();
+            if (asciiFastPath) {
+                transcodeFast();
+            } else {
+                decode(false);
+            }
+            in.compact();
+        }
+
+        // 2. 输入结束，剩下的不完整字节按错误处理
+        in.flip();
+        decode(true);
+        while (decoder.flush(chars).isOverflow()) {
+            encodeChars(false);
+        }
+        chars.flip();
+        encode(true);
+        while (encoder.flush(out).isOverflow()) {
+            flushOut();
+        }
+        flushOut();
+
+        this.target = null;
+        return written;
+    }
+
+    private void transcodeFast() throws IOException {
+        byte[] bytes = in.array();
+        int offset = in.arrayOffset();
+        int limit = in.limit();
+
+        while (in.hasRemaining()) {
+            // 1. 连续的 ASCII 直接复制
+            int start = in.position();
+            int end = start;
+            while (end < limit && bytes[offset + end] >= 0) {
+                end++;
+            }
+            if (end > start) {
+                putAscii(bytes, offset + start, end - start);
+                in.position(end);
+            }
+            if (end == limit) {
+                return;
+            }
+
+            // 2. 连续的非 ASCII 交给解码器
+            while (end < limit && bytes[offset + end] < 0) {
+                end++;
+            }
+            while (true) {
+                in.limit(end);
+                decode(false);
+                if (in.position() >= end || end == limit) {
+                    break;
+                }
+                // 剩下不完整的字符，后续字节落在 ASCII 范围内（例如 GBK 的第二个字节），多给解码器几个字节
+                end = Math.min(limit, Math.max(end + 1, in.position() + MAX_BYTES_PER_CHAR));
+            }
+            in.limit(limit);
+
+            if (in.position() < end) {
+                // 字符被缓冲区截断，等下一次读取
+                return;
+            }
+        }
+    }
+
+    // 解码 in 中的数据，解出的字符全部编码到输出缓冲区
+    private void decode(boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = decoder.decode(in, chars, endOfInput);
+            if (result.isOverflow()) {
+                encodeChars(false);
+            } else if (result.isError()) {
+                throwException(result);
+            } else {
+                break;
+            }
+        }
+        encodeChars(false);
+    }
+
+    private void encodeChars(boolean endOfInput) throws IOException {
+        chars.flip();
+        encode(endOfInput);
+        chars.compact();
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, out, endOfInput);
+            if (result.isOverflow()) {
+                flushOut();
+            } else if (result.isError()) {
+                throwException(result);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void putAscii(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(out.remaining(), length);
+            out.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            if (!out.hasRemaining()) {
+                flushOut();
+            }
+        }
+    }
+
+    private void flushOut() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            written += target.write(out);
+        }
+        out.clear();
+    }
+
+    private static void throwException(CoderResult result) throws CharacterCodingException {
+        result.throwException();
+    }
+}
@@ -0,0 +1,117 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按内容哈希保存的块，每块一个文件，文件名是 MurmurHash3 的十六进制，放在以前两个字符命名的子目录下
+ *
+ * 一、内容相同的块只保存一份，不管属于哪个文件。打开时扫描一遍目录，把已有的块放进内存中的索引。
+ *
+ * 二、写入时先写到临时文件，校验哈希后再原子地重命名，读到的块一定是完整的；
+ *      两个连接同时写同一块也没关系，内容相同，谁覆盖谁都一样。
+ */
+public class ChunkStore {
+    private final Path dir;
+    private final Set<String> index = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong tempIds = new AtomicLong();
+
+    public ChunkStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir);
+        try {
+            for (Path subdir : subdirs) {
+                if (!Files.isDirectory(subdir)) {
+                    continue;
+                }
+                DirectoryStream<Path> files = Files.newDirectoryStream(subdir);
+                try {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (name.length() == 32) {
+                            index.add(name);
+                        } else {
+                            // 上次没写完的临时文件
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                } finally {
+                    files.close();
+                }
+            }
+        } finally {
+            subdirs.close();
+        }
+    }
+
+    public boolean contains(String hex) {
+        return index.contains(hex);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public Path path(String hex) {
+        return dir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * 保存一块，校验哈希后才放进索引
+     *
+     * @param receiver 把 length 个字节写进给定的临时文件，例如从 socket transferFrom
+     */
+    public void put(String hex, int length, Receiver receiver) throws IOException {
+        if (length <= 0) {
+            throw new IOException("chunk " + hex + ": invalid length " + length);
+        }
+        Path path = path(hex);
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(hex + "." + tempIds.incrementAndGet() + ".tmp");
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                receiver.receive(channel);
+                if (channel.size() != length) {
+                    throw new IOException("chunk " + hex + ": expected " + length + " bytes, got " + channel.size());
+                }
+                long[] hash = new long[2];
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                try {
+                    MurmurHash3.hash128(buf, 0, length, 0, hash);
+                } finally {
+                    DirectBuffers.unmap(buf);
+                }
+                if (!MurmurHash3.toHex(hash).equals(hex)) {
+                    throw new IOException("chunk " + hex + ": hash mismatch");
+                }
+            } finally {
+                channel.close();
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index.add(hex);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public FileChannel open(String hex) throws IOException {
+        return FileChannel.open(path(hex), StandardOpenOption.READ);
+    }
+
+    public interface Receiver {
+        void receive(FileChannel channel) throws IOException;
+    }
+}
@@ -0,0 +1,574 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把多个缓冲区（块）串成一段连续的可读数据，不复制
+ *
+ * 一、为什么需要
+ *      一条消息跨两次读时，原来的做法是把数据复制到一个更大的缓冲区中再 compact()，
+ *      大消息要被复制好几次。这里每次读到一个新的块（或者上一个块剩下的空间）中，
+ *      块串起来就是完整的数据，解帧、读整数、找分隔符都直接在块上进行。
+ *
+ * 二、读
+ *      getXxx(index) 按相对读位置的下标读，不移动读位置；readXxx() 读完移动读位置。
+ *      整数跨两个块时逐字节拼起来，统一按大端（网络字节序）。
+ *      读完的块立即从链上去掉并减少引用计数。
+ *
+ * 三、切片和引用计数
+ *      slice()/readSlice() 返回和原来共用块的 CompositeByteBuf，不复制，每个块的引用计数加一。
+ *      CompositeByteBuf 自己也有引用计数，release() 减到 0 时释放对所有块的引用，
+ *      池中借来的块在最后一个引用释放后归还 BufferPool，所以切片可以比原来的 CompositeByteBuf 活得久。
+ *      引用计数是原子的，切片可以交给其他线程，用完在那个线程 release()。
+ *
+ * 四、nioBuffer() 返回数据的 ByteBuffer 视图：只有一个块时不复制，跨多个块时先合并（复制一次）。
+ *      nioBuffers() 返回每个块的视图，可以直接用于 gathering write。
+ *
+ * 五、除引用计数外不是线程安全的，同一个 CompositeByteBuf 只能在一个线程中使用
+ */
+public class CompositeByteBuf {
+    // 底层的缓冲区，limit 始终是 capacity，用绝对下标读；position 是已经写入的位置
+    private static final class Chunk {
+        private final ByteBuffer buffer;
+        // 从 BufferPool.shared() 借来的，最后一个引用释放后归还
+        private final boolean pooled;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Chunk(ByteBuffer buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            int remaining = refs.decrementAndGet();
+            if (remaining == 0 && pooled) {
+                BufferPool.shared().release(buffer);
+            } else if (remaining < 0) {
+                throw new IllegalStateException("chunk released twice");
+            }
+        }
+    }
+
+    // 链上的一段：chunk.buffer 的 [offset, offset + length)
+    private static final class Component {
+        private final Chunk chunk;
+        private int offset;
+        private int length;
+
+        Component(Chunk chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final List<Component> components = new ArrayList<Component>(2);
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    private int readable;
+    // 正在写入的块，readFrom()/writeBytes() 接着写到它剩下的空间中，持有一个引用
+    private Chunk tail;
+    // find() 找到的下标在块中的绝对位置
+    private int cursor;
+
+    /**
+     * 把一个读模式的缓冲区 [position, limit) 接到最后，不复制，也不归还到池中；
+     * 在这个 CompositeByteBuf 和它的切片释放之前，buf 的内容不能修改
+     */
+    public CompositeByteBuf addComponent(ByteBuffer buf) {
+        ensureAccessible();
+        ByteBuffer view = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        view.clear();
+        add(new Chunk(view, false), buf.position(), buf.remaining());
+        return this;
+    }
+
+    /**
+     * 把一个从 BufferPool.shared() 借来的读模式缓冲区 [position, limit) 接到最后，不复制，
+     * 之后 buf 归这个 CompositeByteBuf 所有，最后一个引用释放后归还到池中
+     */
+    public CompositeByteBuf addPooled(ByteBuffer buf) {
+        ensureAccessible();
+        int position = buf.position();
+        int length = buf.remaining();
+        buf.order(ByteOrder.BIG_ENDIAN).clear();
+        add(new Chunk(buf, true), position, length);
+        return this;
+    }
+
+    private void add(Chunk chunk, int offset, int length) {
+        if (length == 0) {
+            chunk.release();
+            return;
+        }
+        components.add(new Component(chunk, offset, length));
+        readable += length;
+    }
+
+    /**
+     * 从通道读一次，读到最后一个块剩下的空间中，没有空间时从池中借一个新的块
+     *
+     * @param chunkSize 新借的块的大小
+     * @return 读到的字节数，-1 表示对方关闭
+     */
+    public int readFrom(ReadableByteChannel channel, int chunkSize) throws IOException {
+        ensureAccessible();
+        ByteBuffer target = tail(chunkSize);
+        int start = target.position();
+        int n = channel.read(target);
+        if (n > 0) {
+            appended(start, n);
+        }
+        return n;
+    }
+
+    /**
+     * 把 src 剩余的字节复制到最后，写满一个块再借一个
+     *
+     * @param chunkSize 新借的块的大小
+     */
+    public CompositeByteBuf writeBytes(ByteBuffer src, int chunkSize) {
+        ensureAccessible();
+        while (src.hasRemaining()) {
+            ByteBuffer target = tail(chunkSize);
+            int start = target.position();
+            int n = Math.min(src.remaining(), target.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            target.put(part);
+            src.position(src.position() + n);
+            appended(start, n);
+        }
+        return this;
+    }
+
+    // 还有空间的最后一个块，position 是写入的位置
+    private ByteBuffer tail(int chunkSize) {
+        if (tail != null && !tail.buffer.hasRemaining()) {
+            tail.release();
+            tail = null;
+        }
+        if (tail == null) {
+            ByteBuffer buf = BufferPool.shared().acquire(Math.max(1, chunkSize));
+            buf.limit(buf.capacity());
+            tail = new Chunk(buf, true);
+        }
+        return tail.buffer;
+    }
+
+    // 写入 tail 的 [start, start + n) 变为可读，和最后一段相连时直接加长
+    private void appended(int start, int n) {
+        Component last = components.isEmpty() ? null : components.get(components.size() - 1);
+        if (last != null && last.chunk == tail && last.offset + last.length == start) {
+            last.length += n;
+        } else {
+            tail.retain();
+            components.add(new Component(tail, start, n));
+        }
+        readable += n;
+    }
+
+    public int readableBytes() {
+        return readable;
+    }
+
+    // 最后一个块剩下的空间，readFrom() 不借新的块最多能读这么多
+    public int writableBytes() {
+        return tail != null ? tail.buffer.remaining() : 0;
+    }
+
+    public boolean isReadable() {
+        return readable > 0;
+    }
+
+    // 链上的块数
+    public int numComponents() {
+        return components.size();
+    }
+
+    public byte getByte(int index) {
+        checkIndex(index, 1);
+        return find(index).chunk.buffer.get(cursor);
+    }
+
+    public short getShort(int index) {
+        checkIndex(index, 2);
+        Component c = find(index);
+        if (c.offset + c.length - cursor >= 2) {
+            return c.chunk.buffer.getShort(cursor);
+        }
+        return (short) (getByte(index) << 8 | getByte(index + 1) & 0xFF);
+    }
+
+    public int getInt(int index) {
+        checkIndex(index, 4);
+        Component c = find(index);
+        if (c.offset + c.length - cursor >= 4) {
+            return c.chunk.buffer.getInt(cursor);
+        }
+        return (getShort(index) & 0xFFFF) << 16 | getShort(index + 2) & 0xFFFF;
+    }
+
+    public long getLong(int index) {
+        checkIndex(index, 8);
+        Component c = find(index);
+        if (c.offset + c.length - cursor >= 8) {
+            return c.chunk.buffer.getLong(cursor);
+        }
+        return (long) getInt(index) << 32 | getInt(index + 4) & 0xFFFFFFFFL;
+    }
+
+    public byte readByte() {
+        byte value = getByte(0);
+        skipBytes(1);
+        return value;
+    }
+
+    public short readShort() {
+        short value = getShort(0);
+        skipBytes(2);
+        return value;
+    }
+
+    public int readInt() {
+        int value = getInt(0);
+        skipBytes(4);
+        return value;
+    }
+
+    public long readLong() {
+        long value = getLong(0);
+        skipBytes(8);
+        return value;
+    }
+
+    /**
+     * 从 index 开始复制 dst.remaining() 个字节到 dst，不移动读位置
+     */
+    public CompositeByteBuf getBytes(int index, ByteBuffer dst) {
+        checkIndex(index, dst.remaining());
+        int base = 0;
+        for (int i = 0; i < components.size() && dst.hasRemaining(); i++) {
+            Component c = components.get(i);
+            if (index < base + c.length) {
+                int from = c.offset + Math.max(0, index - base);
+                int n = Math.min(dst.remaining(), c.offset + c.length - from);
+                ByteBuffer src = c.chunk.buffer.duplicate();
+                src.limit(from + n).position(from);
+                dst.put(src);
+            }
+            base += c.length;
+        }
+        return this;
+    }
+
+    public CompositeByteBuf readBytes(ByteBuffer dst) {
+        int n = dst.remaining();
+        getBytes(0, dst);
+        skipBytes(n);
+        return this;
+    }
+
+    /**
+     * 移动读位置，读完的块从链上去掉
+     */
+    public CompositeByteBuf skipBytes(int length) {
+        checkIndex(0, length);
+        readable -= length;
+        int removed = 0;
+        while (length > 0) {
+            Component c = components.get(removed);
+            if (c.length <= length) {
+                length -= c.length;
+                c.chunk.release();
+                removed++;
+            } else {
+                c.offset += length;
+                c.length -= length;
+                length = 0;
+            }
+        }
+        if (removed > 0) {
+            components.subList(0, removed).clear();
+        }
+        return this;
+    }
+
+    /**
+     * 在 [from, to) 中找 value
+     *
+     * @return 相对读位置的下标，找不到返回 -1
+     */
+    public int indexOf(byte value, int from, int to) {
+        ensureAccessible();
+        to = Math.min(to, readable);
+        int base = 0;
+        for (int i = 0; i < components.size() && base < to; i++) {
+            Component c = components.get(i);
+            int end = Math.min(to, base + c.length);
+            ByteBuffer buffer = c.chunk.buffer;
+            for (int j = Math.max(from, base); j < end; j++) {
+                if (buffer.get(c.offset + j - base) == value) {
+                    return j;
+                }
+            }
+            base += c.length;
+        }
+        return -1;
+    }
+
+    /**
+     * 在 [from, to) 中找多字节的分隔符（例如 "\r\n"），分隔符必须整个在范围内
+     *
+     * @return 分隔符第一个字节相对读位置的下标，找不到返回 -1
+     */
+    public int indexOf(byte[] delimiter, int from, int to) {
+        to = Math.min(to, readable);
+        int last = to - delimiter.length;
+        for (int i = indexOf(delimiter[0], from, last + 1); i >= 0; i = indexOf(delimiter[0], i + 1, last + 1)) {
+            int j = 1;
+            while (j < delimiter.length && getByte(i + j) == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * [index, index + length) 的切片，和这个 CompositeByteBuf 共用块，不复制，用完后调用 release()
+     */
+    public CompositeByteBuf slice(int index, int length) {
+        checkIndex(index, length);
+        CompositeByteBuf slice = new CompositeByteBuf();
+        int base = 0;
+        int end = index + length;
+        for (int i = 0; i < components.size() && base < end; i++) {
+            Component c = components.get(i);
+            int from = Math.max(index, base);
+            int to = Math.min(end, base + c.length);
+            if (from < to) {
+                c.chunk.retain();
+                slice.add(c.chunk, c.offset + from - base, to - from);
+            }
+            base += c.length;
+        }
+        return slice;
+    }
+
+    public CompositeByteBuf readSlice(int length) {
+        CompositeByteBuf slice = slice(0, length);
+        skipBytes(length);
+        return slice;
+    }
+
+    /**
+     * 可读数据的 ByteBuffer 视图，修改视图的 position 和 limit 不影响这个 CompositeByteBuf。
+     * 只有一个块时不复制；跨多个块时先 consolidate()
+     */
+    public ByteBuffer nioBuffer() {
+        ensureAccessible();
+        if (components.isEmpty()) {
+            return ByteBuffer.allocate(0);
+        }
+        if (components.size() > 1) {
+            consolidate();
+        }
+        return view(components.get(0));
+    }
+
+    /**
+     * 每个块的视图，用于 gathering write
+     */
+    public ByteBuffer[] nioBuffers() {
+        ensureAccessible();
+        ByteBuffer[] views = new ByteBuffer[components.size()];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = view(components.get(i));
+        }
+        return views;
+    }
+
+    private static ByteBuffer view(Component c) {
+        ByteBuffer view = c.chunk.buffer.duplicate();
+        view.limit(c.offset + c.length).position(c.offset);
+        return view;
+    }
+
+    /**
+     * 把所有的块复制到一个新借的块中。写入过数据的（不是切片）新块留出和数据一样多的空间作为 tail，
+     * 之后 readFrom() 接着写在后面，反复合并时复制的总量和数据量成正比
+     */
+    public CompositeByteBuf consolidate() {
+        ensureAccessible();
+        if (components.size() > 1) {
+            // 切片（没有写入过）只需要放下现有的数据
+            merge(tail != null ? readable * 2 : readable, false);
+        }
+        return this;
+    }
+
+    /**
+     * 保证从读位置开始的 length 个字节（包括还没写入的）在同一个块中：
+     * 放不下时把已有的数据复制到一个至少 length 字节的新块中，之后 readFrom() 读到这个块剩下的空间里。
+     * 解帧时知道了帧的长度就调用，大帧只复制已经到达的一小部分一次，整个帧到齐后 nioBuffer() 不用再复制
+     */
+    public CompositeByteBuf ensureContiguous(int length) {
+        ensureAccessible();
+        // 数据已经到齐的话切片时再合并，只复制这一帧
+        if (readable >= length || readable == 0) {
+            return this;
+        }
+        Component first = components.get(0);
+        if (components.size() == 1 && first.chunk == tail
+                && first.offset + first.length == tail.buffer.position()) {
+            if (first.offset + length <= tail.buffer.capacity()) {
+                return this;
+            }
+            // 块放得下整个帧，只是前面有读完的数据，原地移到开头
+            if (length <= tail.buffer.capacity() && compactTail()) {
+                return this;
+            }
+        }
+        // 新块至少和当前的块一样大，免得小帧每次都换一个小块
+        merge(Math.max(length, tail != null ? tail.buffer.capacity() : 0), true);
+        return this;
+    }
+
+    // 唯一的一段在 tail 的末尾、tail 只被这一段和 tail 自己引用（没有切片）时，把它移到 tail 的开头
+    private boolean compactTail() {
+        Component c = components.get(0);
+        if (c.chunk != tail || c.offset + c.length != tail.buffer.position() || tail.refs.get() != 2) {
+            return false;
+        }
+        view(c).compact();
+        c.offset = 0;
+        tail.buffer.position(c.length);
+        return true;
+    }
+
+    /**
+     * 把 addComponent() 接上的段（不归这个 CompositeByteBuf 所有）复制到池中借来的块中，
+     * 先用最后一个块剩下的空间，不够时按 chunkSize 借新的块。之后原来的缓冲区可以修改或者重用
+     */
+    public CompositeByteBuf detachExternal(int chunkSize) {
+        ensureAccessible();
+        boolean external = false;
+        for (Component c : components) {
+            external |= !c.chunk.pooled;
+        }
+        if (!external) {
+            return this;
+        }
+        List<Component> old = new ArrayList<Component>(components);
+        components.clear();
+        readable = 0;
+        for (Component c : old) {
+            if (c.chunk.pooled) {
+                components.add(c);
+                readable += c.length;
+            } else {
+                writeBytes(view(c), chunkSize);
+                c.chunk.release();
+            }
+        }
+        return this;
+    }
+
+    // 把所有的块复制到一个至少 capacity 字节的新块中，writable 或者还在写入的话新块作为 tail
+    private void merge(int capacity, boolean writable) {
+        int length = readable;
+        ByteBuffer merged = BufferPool.shared().acquire(Math.max(length, capacity));
+        merged.limit(merged.capacity());
+        for (Component c : components) {
+            merged.put(view(c));
+            c.chunk.release();
+        }
+        components.clear();
+        Chunk chunk = new Chunk(merged, true);
+        components.add(new Component(chunk, 0, length));
+        if (writable || tail != null) {
+            if (tail != null) {
+                tail.release();
+            }
+            chunk.retain();
+            tail = chunk;
+        }
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    public CompositeByteBuf retain() {
+        ensureAccessible();
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * 引用计数减一，减到 0 时释放对所有块的引用
+     *
+     * @return 是否已经释放
+     */
+    public boolean release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining > 0) {
+            return false;
+        }
+        if (remaining < 0) {
+            throw new IllegalStateException("released twice");
+        }
+        for (Component c : components) {
+            c.chunk.release();
+        }
+        components.clear();
+        readable = 0;
+        if (tail != null) {
+            tail.release();
+            tail = null;
+        }
+        return true;
+    }
+
+    // 下标所在的段，块中的绝对位置放在 cursor 中
+    private Component find(int index) {
+        for (int i = 0; ; i++) {
+            Component c = components.get(i);
+            if (index < c.length) {
+                cursor = c.offset + index;
+                return c;
+            }
+            index -= c.length;
+        }
+    }
+
+    private void checkIndex(int index, int length) {
+        ensureAccessible();
+        if (index < 0 || length < 0 || index + length > readable) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length + ", readable: " + readable);
+        }
+    }
+
+    private void ensureAccessible() {
+        if (refCnt.get() <= 0) {
+            throw new IllegalStateException("already released");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeByteBuf[readable=" + readable + ", components=" + components.size() + ", refCnt=" + refCnt() + "]";
+    }
+}
@@ -0,0 +1,401 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventLoop 上的一个连接，作为 SelectionKey 的 attachment，保存这个连接自己的状态
+ * 除了 close() 之外的方法只能在所属的 EventLoop 线程中调用
+ *
+ * 一、读数据
+ *      1. 读就绪时一直读到返回 0（数据读完了，回到选择器等待）或者 -1（对方关闭）为止，非阻塞通道不能用 != -1 判断
+ *      2. 平时直接读进 EventLoop 共用的读缓冲区，从中解出完整的帧交给 ConnectionHandler，不复制
+ *      3. 剩下半个帧时，才为这个连接创建一个 CompositeByteBuf，把剩下的部分复制到按它的大小借的块中。
+ *         之后的数据仍然读到共用缓冲区中（一次读得多），接在 CompositeByteBuf 后面（不复制）解出跨两次读的帧，
+ *         这一帧合并（复制）一次；剩下的数据都在共用缓冲区中时释放 CompositeByteBuf，回到第 2 条。
+ *         大部分时间连接不占用任何缓冲区
+ *      4. 大帧直接读到 CompositeByteBuf 的块中，而不是每次扩容都复制一遍：
+ *         长度前缀的帧知道长度后，decoder 借一个放得下整个帧的块（见 CompositeByteBuf.ensureContiguous），
+ *         只复制开头已经到达的部分一次；不知道长度的帧（例如分隔符）比共用缓冲区大以后，
+ *         块写满了再借一个和已有的数据一样大的块，已有的数据不复制，帧到齐后合并一次
+ *
+ * 二、decoder 为 null 时不分帧，读到多少就交给 ConnectionHandler 多少
+ *
+ * 三、写数据
+ *      1. write() 可以在任意线程中调用，数据复制到池中的缓冲区后放进发送队列，由 EventLoop 线程发送，
+ *         同一轮中多次 write() 只发送一次，用 gathering write 一次系统调用写出多个缓冲区
+ *      2. 发送缓冲区满了（write 返回 0）才注册 OP_WRITE，等可写时接着发，发完后马上取消。
+ *         一直注册 OP_WRITE 的话，socket 几乎总是可写的，select() 会不停地返回
+ *      3. 待发送的字节数超过高水位时 isWritable() 变为 false，降到低水位以下变回 true，
+ *         变化时回调 ConnectionHandler.onWritabilityChanged，生产者据此暂停和恢复，对方读得慢时内存不会无限增长
+ */
+public class Connection {
+    // 一次读事件最多读几次，避免一个连接占住 EventLoop
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private static final int MIN_CUMULATION_SIZE = 1024;
+
+    // 一次 gathering write 最多写几个缓冲区
+    private static final int MAX_GATHER = 64;
+    // 一次发送最多写几次
+    private static final int MAX_WRITES_PER_FLUSH = 16;
+
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ConnectionHandler handler;
+    private final FrameDecoder decoder;
+    // 不完整的帧
+    private CompositeByteBuf cumulation;
+    // cumulation 开头已经检查过、没有解出帧的字节数，decoder 从这里接着找
+    private int checked;
+    private Object attachment;
+    private volatile boolean closed;
+
+    // 其他线程 write() 进来的数据，读模式
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+    // 已经从 outbound 取出还没写完的数据，只在 EventLoop 线程中访问
+    private final ArrayDeque<ByteBuffer> flushing = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    // 最后一次通知给 handler 的状态，只在 EventLoop 线程中访问
+    private boolean notifiedWritable = true;
+    private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            // 已经在等写就绪时不用再试，可写时会接着发
+            if (!closed && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                flush();
+            }
+        }
+    };
+
+    private final Runnable writabilityTask = new Runnable() {
+        @Override
+        public void run() {
+            fireWritabilityChanged();
+        }
+    };
+
+    Connection(EventLoop eventLoop, SocketChannel channel, SelectionKey key,
+               ConnectionHandler handler, FrameDecoder decoder) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+        this.decoder = decoder;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    // 业务自己的连接状态
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    // 待发送的数据没有超过高水位
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    // 已经 write() 还没有写进 socket 的字节数
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * 发送数据，可以在任意线程中调用。data 中剩余的字节会被复制，调用返回后 data 可以继续使用
+     * 超过高水位时数据仍然会放进队列，是否暂停由调用者根据 isWritable() 决定
+     *
+     * @return 连接已经关闭时返回 false
+     */
+    public boolean write(ByteBuffer data) {
+        if (closed) {
+            return false;
+        }
+        int size = data.remaining();
+        if (size == 0) {
+            return true;
+        }
+        ByteBuffer copy = BufferPool.shared().acquire(size);
+        copy.put(data);
+        copy.flip();
+        outbound.offer(copy);
+        long pending = addPending(size);
+
+        if (closed) {
+            // close() 已经清空过队列，这里放进去的自己归还
+            releaseOutbound();
+            return false;
+        }
+        if (pending > highWaterMark && writable.compareAndSet(true, false)) {
+            eventLoop.execute(writabilityTask);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+        return true;
+    }
+
+    /**
+     * 读就绪
+     *
+     * @param buf EventLoop 共用的读缓冲区
+     */
+    void onReadable(ByteBuffer buf) {
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT && !closed; i++) {
+                // 大帧直接读到块中，否则读到共用缓冲区
+                boolean direct = cumulation != null && (cumulation.writableBytes() >= buf.capacity()
+                        || cumulation.readableBytes() >= buf.capacity());
+                int n;
+                if (direct) {
+                    n = cumulation.readFrom(channel, cumulation.readableBytes());
+                } else {
+                    buf.clear();
+                    n = channel.read(buf);
+                }
+                if (n == -1) {
+                    close();
+                    return;
+                }
+                if (n == 0) {
+                    return;
+                }
+                eventLoop.getMetrics().addBytesRead(n);
+
+                if (direct) {
+                    decodeCumulation(null);
+                    continue;
+                }
+
+                buf.flip();
+                if (decoder == null) {
+                    handler.onMessage(this, buf);
+                    continue;
+                }
+
+                if (cumulation != null) {
+                    cumulation.addComponent(buf);
+                    if (!decodeCumulation(buf)) {
+                        continue;
+                    }
+                }
+                ByteBuffer frame;
+                while (!closed && (frame = decoder.decode(buf)) != null) {
+                    handler.onMessage(this, frame);
+                }
+                if (!closed && buf.hasRemaining()) {
+                    // 半个帧；马上解一次，长度前缀的帧按帧长借块
+                    checked = buf.remaining();
+                    cumulation = new CompositeByteBuf().addComponent(buf);
+                    decodeCumulation(null);
+                }
+            }
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    /**
+     * 从 cumulation 中解帧
+     *
+     * @param buf 接在 cumulation 最后的共用缓冲区，没有时为 null
+     * @return 剩下的数据都在 buf 中，cumulation 已经释放，调用方接着在 buf 上解帧
+     */
+    private boolean decodeCumulation(ByteBuffer buf) throws IOException {
+        CompositeByteBuf frame;
+        while (!closed && (frame = decoder.decode(cumulation, checked)) != null) {
+            checked = 0;
+            try {
+                handler.onMessage(this, frame.nioBuffer());
+            } finally {
+                frame.release();
+            }
+            if (!closed && buf != null && cumulation.readableBytes() <= buf.remaining()) {
+                buf.position(buf.limit() - cumulation.readableBytes());
+                cumulation.release();
+                cumulation = null;
+                return true;
+            }
+        }
+        if (closed) {
+            return false;
+        }
+        if (cumulation.isReadable()) {
+            checked = cumulation.readableBytes();
+            // 共用缓冲区下次读要覆盖，剩下的部分复制出来
+            cumulation.detachExternal(Math.max(MIN_CUMULATION_SIZE, cumulation.readableBytes()));
+        } else {
+            cumulation.release();
+            cumulation = null;
+        }
+        return false;
+    }
+
+    // 写就绪，接着发送上次没发完的数据
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            for (int i = 0; i < MAX_WRITES_PER_FLUSH; i++) {
+                ByteBuffer next;
+                while ((next = outbound.poll()) != null) {
+                    flushing.add(next);
+                }
+                if (flushing.isEmpty()) {
+                    // 都发完了，不再关心写就绪
+                    setWriteInterest(false);
+                    break;
+                }
+
+                int count = 0;
+                long attempted = 0;
+                for (ByteBuffer buf : flushing) {
+                    gather[count++] = buf;
+                    attempted += buf.remaining();
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+                long n = channel.write(gather, 0, count);
+                for (int j = 0; j < count; j++) {
+                    gather[j] = null;
+                }
+                addPending(-n);
+                eventLoop.getMetrics().addBytesWritten(n);
+                while (!flushing.isEmpty() && !flushing.peek().hasRemaining()) {
+                    BufferPool.shared().release(flushing.poll());
+                }
+                if (n < attempted) {
+                    // 发送缓冲区满了，等写就绪
+                    setWriteInterest(true);
+                    break;
+                }
+            }
+            if (!flushing.isEmpty() || !outbound.isEmpty()) {
+                // 写的次数用完了还有数据，下一轮接着写
+                setWriteInterest(true);
+            }
+        } catch (IOException ex) {
+            close();
+            return;
+        }
+
+        if (pendingBytes.get() <= lowWaterMark && writable.compareAndSet(false, true) && !closed) {
+            // 变为 false 的通知可能还在任务队列里没执行，但生产者可能已经通过 isWritable() 看到了 false，
+            // 所以恢复时总是通知
+            notifiedWritable = true;
+            handler.onWritabilityChanged(this, true);
+        }
+    }
+
+    private void setWriteInterest(boolean interested) {
+        int ops = key.interestOps();
+        int newOps = interested ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+        if (ops != newOps) {
+            key.interestOps(newOps);
+        }
+    }
+
+    // 只通知和上次不一样的状态，执行前已经恢复的话不会收到过期的 false
+    private void fireWritabilityChanged() {
+        boolean current = writable.get();
+        if (current != notifiedWritable && !closed) {
+            notifiedWritable = current;
+            handler.onWritabilityChanged(this, current);
+        }
+    }
+
+    private void releaseOutbound() {
+        ByteBuffer buf;
+        while ((buf = outbound.poll()) != null) {
+            addPending(-buf.remaining());
+            BufferPool.shared().release(buf);
+        }
+    }
+
+    // 待发送的字节数同时计入 EventLoop 的统计
+    private long addPending(long delta) {
+        eventLoop.getMetrics().addOutboundBytes(delta);
+        return pendingBytes.addAndGet(delta);
+    }
+
+    // 可以在任意线程中调用
+    public void close() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+        for (ByteBuffer buf : flushing) {
+            addPending(-buf.remaining());
+            BufferPool.shared().release(buf);
+        }
+        flushing.clear();
+        releaseOutbound();
+        eventLoop.connectionClosed();
+        handler.onClose(this);
+    }
+}
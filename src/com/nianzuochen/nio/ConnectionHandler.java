@@ -0,0 +1,28 @@
+package com.nianzuochen.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 连接上的事件回调，都在连接所属的 EventLoop 线程中调用，不能阻塞
+ */
+public interface ConnectionHandler {
+    // 连接注册到 EventLoop 之后
+    void onOpen(Connection connection);
+
+    /**
+     * 收到消息
+     *
+     * @param message 只在回调期间有效，需要保留时自己复制
+     */
+    void onMessage(Connection connection, ByteBuffer message);
+
+    // 连接关闭之后
+    void onClose(Connection connection);
+
+    /**
+     * 待发送的数据超过高水位时 writable 变为 false，生产者应该暂停 write()；降到低水位以下时变回 true
+     * 很快就恢复时可能只收到 true
+     */
+    default void onWritabilityChanged(Connection connection, boolean writable) {
+    }
+}
@@ -0,0 +1,160 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 按内容分块（content-defined chunking），用于去重
+ *
+ * 一、固定大小分块时，文件开头插入一个字节，后面所有块都变了。按内容分块由内容决定边界：
+ *      对每个字节更新一个滚动哈希（Gear 哈希：h = (h << 1) + GEAR[b]），哈希的某几位为 0 时就是一个边界，
+ *      插入或删除只影响附近的一两个块，其余的块不变，哈希相同，不用重新传输。
+ *
+ * 二、FastCDC 的做法：
+ *      1. 块小于 minSize 时不找边界，直接跳过（也不用计算哈希）
+ *      2. 小于平均大小时用更多位的掩码（更难切），大于平均大小后用更少位的掩码（更容易切），块的大小更集中
+ *      3. 到 maxSize 强制切
+ *
+ * 三、文件按窗口映射（MappedByteBuffer），在映射的缓冲区上直接计算分块和 MurmurHash3，不复制到堆中。
+ *      窗口至少是 maxSize 的两倍，每个窗口至少切出一个完整的块
+ */
+public class ContentChunker {
+    public static final int DEFAULT_MIN_SIZE = 2 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // 固定的种子，两端的分块结果必须一致
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final long[] hash;
+
+        public Chunk(long offset, int length, long[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        // MurmurHash3 x64 128
+        public long[] getHash() {
+            return hash;
+        }
+
+        public String getHex() {
+            return MurmurHash3.toHex(hash);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+    private final long windowSize;
+
+    public ContentChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param avgSize 平均块大小，必须是 2 的幂
+     */
+    public ContentChunker(int minSize, int avgSize, int maxSize) {
+        if (Integer.bitCount(avgSize) != 1 || minSize <= 0 || minSize >= avgSize || avgSize >= maxSize) {
+            throw new IllegalArgumentException("minSize: " + minSize + ", avgSize: " + avgSize + ", maxSize: " + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        // 掩码取高位，Gear 哈希的高位混合了更多的字节
+        this.maskSmall = mask(bits + 2);
+        this.maskLarge = mask(bits - 2);
+        // 窗口比 maxSize 小的话，末尾的块不完整，窗口一个块也切不出来，永远停在原地
+        this.windowSize = Math.max(WINDOW_SIZE, Math.min(2L * maxSize, Integer.MAX_VALUE));
+    }
+
+    private static long mask(int bits) {
+        return bits <= 0 ? 0 : -1L << (64 - bits);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 把 channel 的全部内容分块并计算每块的哈希
+     */
+    public List<Chunk> chunk(FileChannel channel) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            // 窗口末尾的块可能被截断，从最后一个完整块的末尾重新映射，窗口末尾就是文件末尾时除外
+            long windowLength = Math.min(windowSize, size - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowLength);
+            try {
+                boolean last = position + windowLength == size;
+                int start = 0;
+                int limit = (int) windowLength;
+                while (start < limit && (last || limit - start >= maxSize)) {
+                    int length = cut(window, start, limit - start);
+                    long[] hash = new long[2];
+                    MurmurHash3.hash128(window, start, length, 0, hash);
+                    chunks.add(new Chunk(position + start, length, hash));
+                    start += length;
+                }
+                position += start;
+            } finally {
+                DirectBuffers.unmap(window);
+            }
+        }
+        return chunks;
+    }
+
+    // 从 start 开始的下一块的长度
+    private int cut(MappedByteBuffer buf, int start, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int end = start + Math.min(available, maxSize);
+        int normal = start + Math.min(available, avgSize);
+        long h = 0;
+        int i = start + minSize;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[buf.get(i) & 0xFF];
+            if ((h & maskSmall) == 0) {
+                return i + 1 - start;
+            }
+        }
+        for (; i < end; i++) {
+            h = (h << 1) + GEAR[buf.get(i) & 0xFF];
+            if ((h & maskLarge) == 0) {
+                return i + 1 - start;
+            }
+        }
+        return end - start;
+    }
+}
@@ -0,0 +1,47 @@
+package com.nianzuochen.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次复制的结果：使用的策略、复制的字节数、耗时
+ */
+public class CopyResult {
+    private final CopyStrategy strategy;
+    private final long bytes;
+    private final long nanos;
+
+    public CopyResult(CopyStrategy strategy, long bytes, long nanos) {
+        this.strategy = strategy;
+        this.bytes = bytes;
+        this.nanos = nanos;
+    }
+
+    public CopyStrategy getStrategy() {
+        return strategy;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    // 吞吐量，单位 MB/s
+    public double getThroughput() {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d bytes, %d ms, %.1f MB/s", strategy, bytes, getMillis(), getThroughput());
+    }
+}
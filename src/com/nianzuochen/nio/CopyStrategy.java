@@ -0,0 +1,15 @@
+package com.nianzuochen.nio;
+
+/**
+ * 文件复制的几种方式，对应 TestChannel 中的几个例子
+ */
+public enum CopyStrategy {
+    // 非直接缓冲区循环读写（test1）
+    HEAP,
+    // 直接缓冲区循环读写，省去堆和本地内存之间的拷贝
+    DIRECT,
+    // 分段内存映射（test2、test7）
+    MAPPED,
+    // 通道之间直接传输，由内核完成复制（test3）
+    TRANSFER
+}
@@ -0,0 +1,278 @@
+package com.nianzuochen.nio;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把 FragmentingDatagramSender 发送的分片重组成完整的消息
+ *
+ * 一、第一个分片到达时按消息总长度从 BufferPool 借一个直接缓冲区，每个分片按头中的偏移直接放进去，
+ *      用 BitSet 记录收到了哪些分片，全部收到后把整个缓冲区交给 MessageHandler，之后归还。
+ *      只有一个分片的消息不复制，直接把数据报中的那一段交给 MessageHandler。
+ *
+ * 二、消息按（发送端地址, 消息 id）区分。查找时用一个可变的 key，收到分片时不分配对象。
+ *
+ * 三、UDP 不保证送达：第一个分片到达后 timeout 内没有收齐的消息被丢弃，调用 MessageHandler.onLost。
+ *      未完成的消息按到达顺序保存在 LinkedHashMap 中，超时检查只看最前面的几个。
+ *      未完成的消息太多（超过 maxPending）时，最早的那个也当作丢失，防止缓冲区占用无限增长。
+ *      消息完成后又到达的重复分片会被当作一条新消息，超时后也报告为丢失。
+ *
+ * 四、实现了 UdpIngestor.DatagramHandler，可以直接放在 UdpIngestor 后面；方法都是同步的，
+ *      worker 多于一个时同一条消息的分片会被不同的 worker 处理，用一个 worker 时锁没有竞争。
+ *      没有新分片到达时不会检查超时，需要定期调用 evictExpired()。
+ */
+public class DatagramReassembler implements UdpIngestor.DatagramHandler {
+    public interface MessageHandler {
+        /**
+         * @param message 完整的消息，只在回调期间有效
+         */
+        void onMessage(SocketAddress sender, int id, ByteBuffer message);
+
+        /**
+         * 超时或者被挤掉的消息
+         */
+        void onLost(SocketAddress sender, int id, int receivedFragments, int fragmentCount);
+    }
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PENDING = 1024;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final MessageHandler handler;
+    private final long timeoutNanos;
+    private final int maxPending;
+    private final int maxMessageSize;
+    private final Map<Key, Partial> partials = new LinkedHashMap<Key, Partial>();
+    private final Key lookup = new Key();
+    // 最早的未完成消息的超时时间，不早于它时不用遍历；最早的消息完成后这个值可能偏早，只会多检查一次
+    private long nextDeadline;
+
+    private long completed;
+    private long lost;
+    private long duplicates;
+    private long malformed;
+
+    public DatagramReassembler(MessageHandler handler) {
+        this(handler, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_PENDING, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public DatagramReassembler(MessageHandler handler, long timeoutMillis, int maxPending, int maxMessageSize) {
+        if (timeoutMillis <= 0 || maxPending <= 0 || maxMessageSize <= 0) {
+            throw new IllegalArgumentException("timeoutMillis: " + timeoutMillis + ", maxPending: " + maxPending
+                    + ", maxMessageSize: " + maxMessageSize);
+        }
+        this.handler = handler;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxPending = maxPending;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * 处理一个分片，datagram 的 position 到 limit 是整个数据报
+     */
+    @Override
+    public synchronized void onDatagram(SocketAddress sender, ByteBuffer datagram) {
+        long now = System.nanoTime();
+        evictExpired(now);
+
+        int position = datagram.position();
+        int length = datagram.remaining() - FragmentingDatagramSender.HEADER_SIZE;
+        if (length < 0) {
+            malformed++;
+            return;
+        }
+        int id = datagram.getInt(position);
+        int index = datagram.getShort(position + 4) & 0xFFFF;
+        int count = datagram.getShort(position + 6) & 0xFFFF;
+        int totalLength = datagram.getInt(position + 8);
+        int offset = datagram.getInt(position + 12);
+        if (index >= count || totalLength < 0 || totalLength > maxMessageSize
+                || offset < 0 || offset > totalLength - length) {
+            malformed++;
+            return;
+        }
+        int payload = position + FragmentingDatagramSender.HEADER_SIZE;
+
+        if (count == 1) {
+            if (length != totalLength) {
+                malformed++;
+                return;
+            }
+            datagram.position(payload);
+            deliver(sender, id, datagram);
+            return;
+        }
+
+        lookup.set(sender, id);
+        Partial partial = partials.get(lookup);
+        if (partial == null) {
+            if (partials.size() >= maxPending) {
+                evictOldest();
+            }
+            partial = new Partial(totalLength, count, now + timeoutNanos);
+            if (partials.isEmpty()) {
+                nextDeadline = partial.deadline;
+            }
+            partials.put(new Key(sender, id), partial);
+        } else if (partial.count != count || partial.buffer.limit() != totalLength) {
+            malformed++;
+            return;
+        }
+        if (partial.fragments.get(index)) {
+            duplicates++;
+            return;
+        }
+
+        // 按偏移放进消息的缓冲区，不移动 datagram 和 buffer 的位置
+        ByteBuffer source = datagram.duplicate();
+        source.limit(payload + length).position(payload);
+        ByteBuffer target = partial.buffer.duplicate();
+        target.position(offset);
+        target.put(source);
+        partial.fragments.set(index);
+
+        if (++partial.received == count) {
+            partials.remove(lookup);
+            try {
+                partial.buffer.position(0);
+                deliver(sender, id, partial.buffer);
+            } finally {
+                partial.free();
+            }
+        }
+    }
+
+    /**
+     * 丢弃所有超时的消息，没有分片到达时需要定期调用
+     */
+    public synchronized void evictExpired() {
+        evictExpired(System.nanoTime());
+    }
+
+    private void evictExpired(long now) {
+        if (partials.isEmpty() || nextDeadline - now > 0) {
+            return;
+        }
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Partial> entry = it.next();
+            // 按到达顺序保存，前面的没超时后面的也不会超时
+            if (entry.getValue().deadline - now > 0) {
+                nextDeadline = entry.getValue().deadline;
+                break;
+            }
+            it.remove();
+            lose(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void evictOldest() {
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        Map.Entry<Key, Partial> entry = it.next();
+        it.remove();
+        lose(entry.getKey(), entry.getValue());
+    }
+
+    private void lose(Key key, Partial partial) {
+        lost++;
+        try {
+            handler.onLost(key.sender, key.id, partial.received, partial.count);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        } finally {
+            partial.free();
+        }
+    }
+
+    private void deliver(SocketAddress sender, int id, ByteBuffer message) {
+        completed++;
+        try {
+            handler.onMessage(sender, id, message);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // 丢弃所有未完成的消息，归还缓冲区，不报告丢失
+    public synchronized void clear() {
+        for (Partial partial : partials.values()) {
+            partial.free();
+        }
+        partials.clear();
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getMalformed() {
+        return malformed;
+    }
+
+    public synchronized int getPending() {
+        return partials.size();
+    }
+
+    private static class Key {
+        private SocketAddress sender;
+        private int id;
+
+        Key() {
+        }
+
+        Key(SocketAddress sender, int id) {
+            set(sender, id);
+        }
+
+        void set(SocketAddress sender, int id) {
+            this.sender = sender;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sender.hashCode() + id;
+        }
+    }
+
+    private static class Partial {
+        private final ByteBuffer buffer;
+        private final BitSet fragments;
+        private final int count;
+        private final long deadline;
+        private int received;
+
+        Partial(int length, int count, long deadline) {
+            this.buffer = BufferPool.shared().acquire(length);
+            this.fragments = new BitSet(count);
+            this.count = count;
+            this.deadline = deadline;
+        }
+
+        void free() {
+            BufferPool.shared().release(buffer);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分隔符结尾的帧（例如按行 '\n'），解出的帧不包含分隔符
+ */
+public class DelimiterFrameDecoder implements FrameDecoder {
+    private final byte delimiter;
+    private final int maxFrameLength;
+
+    public DelimiterFrameDecoder(byte delimiter, int maxFrameLength) {
+        this.delimiter = delimiter;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer in) throws IOException {
+        return decode(in, 0);
+    }
+
+    // 前 checked 个字节里没有分隔符，从后面接着找
+    @Override
+    public ByteBuffer decode(ByteBuffer in, int checked) throws IOException {
+        int position = in.position();
+        int limit = in.limit();
+        int end = Math.min(limit, position + maxFrameLength + 1);
+        for (int i = Math.min(position + checked, end); i < end; i++) {
+            if (in.get(i) == delimiter) {
+                ByteBuffer frame = in.duplicate();
+                frame.position(position).limit(i);
+                in.position(i + 1);
+                return frame;
+            }
+        }
+        if (end - position > maxFrameLength) {
+            throw new IOException("frame exceeds " + maxFrameLength + " bytes without delimiter");
+        }
+        return null;
+    }
+
+    @Override
+    public CompositeByteBuf decode(CompositeByteBuf in, int checked) throws IOException {
+        int end = Math.min(in.readableBytes(), maxFrameLength + 1);
+        int i = in.indexOf(delimiter, Math.min(checked, end), end);
+        if (i >= 0) {
+            CompositeByteBuf frame = in.readSlice(i);
+            in.skipBytes(1);
+            return frame;
+        }
+        if (end > maxFrameLength) {
+            throw new IOException("frame exceeds " + maxFrameLength + " bytes without delimiter");
+        }
+        return null;
+    }
+}
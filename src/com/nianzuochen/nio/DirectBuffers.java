@@ -0,0 +1,85 @@
+package com.nianzuochen.nio;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * 直接缓冲区的辅助方法
+ *
+ * 直接缓冲区（包括 map() 得到的 MappedByteBuffer）所占用的物理内存只有在缓冲区对象被 GC 回收后才会释放，
+ * 大文件分段映射时，如果等 GC 来回收，映射的内存会一直堆积。unmap() 可以主动释放。
+ *
+ * 释放之后缓冲区就不能再访问了，否则 JVM 会直接崩溃，调用方必须保证没有其他引用。
+ */
+public final class DirectBuffers {
+    // jdk9 之后：sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    // jdk1.8：((sun.nio.ch.DirectBuffer) buf).cleaner().clean()
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception ex) {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+
+        if (invokeCleaner == null) {
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception ex) {
+                cleaner = null;
+                clean = null;
+            }
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * 立即释放直接缓冲区占用的内存（对 MappedByteBuffer 来说就是 munmap）
+     * 非直接缓冲区、切片或者当前 JVM 不支持时什么也不做，交给 GC 处理
+     *
+     * @return 是否真正释放
+     */
+    public static boolean unmap(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return false;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+                return true;
+            }
+            if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(buf);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                    return true;
+                }
+            }
+        } catch (Exception ex) {
+            // 切片（slice、duplicate）没有自己的 cleaner，invokeCleaner 会抛 IllegalArgumentException
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package com.nianzuochen.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SegmentLog 什么时候把映射的数据 force() 到磁盘
+ *
+ * 一、写进映射缓冲区的数据在页缓存中，进程崩溃不会丢，断电或者系统崩溃会丢最后还没写回的部分
+ *
+ * 二、force() 是一次 msync，几毫秒到几十毫秒，每条消息一次的话每秒只能写几百条。
+ *      组提交（group commit）：一个后台线程一次 force() 覆盖这段时间所有追加的消息，
+ *      等待持久化的追加者一起被唤醒，每条消息分摊的 force() 开销随并发量下降
+ */
+public final class DurabilityPolicy {
+    private final String name;
+    // 后台线程两次 force() 的间隔，0 表示没有后台线程
+    private final long intervalNanos;
+    // append() 是否等到数据 force() 之后才返回
+    private final boolean sync;
+    // 组提交时收到第一个请求后再等一会，多攒一些追加者
+    private final long lingerNanos;
+
+    private DurabilityPolicy(String name, long intervalNanos, boolean sync, long lingerNanos) {
+        this.name = name;
+        this.intervalNanos = intervalNanos;
+        this.sync = sync;
+        this.lingerNanos = lingerNanos;
+    }
+
+    /**
+     * 不主动 force()，由操作系统写回，只有 flush() 和 close() 时 force()
+     */
+    public static DurabilityPolicy none() {
+        return new DurabilityPolicy("none", 0, false, 0);
+    }
+
+    /**
+     * 后台线程每隔 intervalMillis 毫秒 force() 一次，append() 不等待；断电最多丢最后 intervalMillis 毫秒的数据
+     */
+    public static DurabilityPolicy periodic(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis: " + intervalMillis);
+        }
+        return new DurabilityPolicy("periodic(" + intervalMillis + "ms)",
+                TimeUnit.MILLISECONDS.toNanos(intervalMillis), false, 0);
+    }
+
+    /**
+     * append() 等到数据 force() 之后才返回，并发的追加者共用一次 force()
+     *
+     * @param lingerMicros 后台线程收到第一个请求后再等多少微秒，0 表示立即 force()
+     */
+    public static DurabilityPolicy groupCommit(long lingerMicros) {
+        if (lingerMicros < 0) {
+            throw new IllegalArgumentException("lingerMicros: " + lingerMicros);
+        }
+        return new DurabilityPolicy("groupCommit(" + lingerMicros + "us)", 0, true,
+                TimeUnit.MICROSECONDS.toNanos(lingerMicros));
+    }
+
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    boolean isSync() {
+        return sync;
+    }
+
+    long getLingerNanos() {
+        return lingerNanos;
+    }
+
+    // 需要后台线程
+    boolean needsFlusher() {
+        return sync || intervalNanos > 0;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,214 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个选择器 + 一个线程的事件循环（多 Reactor 中的 worker）
+ *
+ * 一、其他线程不能直接 register()：选择器正在 select() 时注册会被阻塞。
+ *      所以注册、关闭等操作都放进任务队列，再 wakeup() 选择器，由事件循环线程自己执行。
+ *      wakeup() 是一次系统调用，同一轮 select() 只唤醒一次。
+ *
+ * 二、同一个 EventLoop 上的所有连接共用一个读缓冲区（从池中借用），读事件不再分配缓冲区。
+ *
+ * 三、每一轮先处理就绪的键，再执行任务队列。处理读事件时 write() 的数据也是放进任务队列，
+ *      这样一轮读到的所有消息的回复合在一起发送。任务队列不为空时用 selectNow()，不会阻塞在 select() 上。
+ *
+ * 四、每一轮的等待时间、处理时间、就绪键数等记录在 EventLoopMetrics 中，启动时注册到 JMX
+ */
+public class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final ConnectionHandler handler;
+    private final FrameDecoder decoder;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final int readBufferSize;
+    private final EventLoopMetrics metrics;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public EventLoop(String name, ConnectionHandler handler) throws IOException {
+        this(name, handler, null, 16 * 1024);
+    }
+
+    /**
+     * @param decoder 所有连接共用的分帧方式，为 null 时不分帧
+     */
+    public EventLoop(String name, ConnectionHandler handler, FrameDecoder decoder, int readBufferSize) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.decoder = decoder;
+        this.readBufferSize = readBufferSize;
+        this.selector = Selector.open();
+        this.metrics = new EventLoopMetrics(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EventLoopMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void start() {
+        metrics.register();
+        running = true;
+        Thread t = new Thread(this, name);
+        thread = t;
+        t.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // 在事件循环线程中执行任务，可以在任意线程中调用
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // 当前的连接数，用于负载均衡
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * 把一个已经建立的连接交给这个 EventLoop，可以在任意线程中调用
+     */
+    public void register(final SocketChannel channel) {
+        connections.incrementAndGet();
+        metrics.addConnections(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(EventLoop.this, channel, key, handler, decoder);
+                    key.attach(connection);
+                    handler.onOpen(connection);
+                } catch (IOException ex) {
+                    connections.decrementAndGet();
+                    metrics.addConnections(-1);
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+        metrics.addConnections(-1);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = BufferPool.shared().acquire(readBufferSize);
+        try {
+            while (running) {
+                long selectStart = System.nanoTime();
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                long selectEnd = System.nanoTime();
+                wakeupPending.set(false);
+
+                int ready = selector.selectedKeys().size();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(buf);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (RuntimeException ex) {
+                        // 业务处理出错只关闭这个连接
+                        ex.printStackTrace();
+                        connection.close();
+                    }
+                }
+
+                runTasks();
+                metrics.recordIteration(selectStart, selectEnd, System.nanoTime(), ready);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (ClosedSelectorException ex) {
+            // 已关闭
+        } finally {
+            closeAll();
+            BufferPool.shared().release(buf);
+            metrics.unregister();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                ((Connection) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.nianzuochen.nio;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个选择器循环（EventLoop、MultiReactorServer 的 boss、UdpIngestor 的接收线程）的统计
+ *
+ * 一、每一轮 select() 记录一次：等待时间（阻塞在 select() 中）、处理时间（处理就绪的键和任务）、就绪的键数，
+ *      前两个用 Histogram 记录分布。延迟变大时可以据此区分：
+ *      等待时间长、就绪键少      没有事件，问题不在这个循环
+ *      等待时间短、处理时间占比高  循环忙不过来（过载）
+ *      处理时间的 p999/max 很大  某个 handler 阻塞了事件循环
+ *
+ * 二、计数：读写的字节数、接收的连接数、每秒的速率（循环线程每秒计算一次），
+ *      连接数、待发送的字节数（所有连接的发送队列），以及共用的 BufferPool 的占用。
+ *
+ * 三、除了待发送的字节数（任意线程 write()）之外，都只由循环线程写，用 lazySet，
+ *      记录一轮只有几次数组和字段的写，没有锁、没有 volatile 写的屏障。
+ *      其他线程通过 snapshot() 或者 JMX 读。
+ */
+public class EventLoopMetrics implements EventLoopMetricsMXBean {
+    public static final String DOMAIN = "com.nianzuochen.nio";
+
+    private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final Histogram selectWait = new Histogram();
+    private final Histogram processing = new Histogram();
+    private final Histogram readyKeys = new Histogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong accepts = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private volatile boolean resetRequested;
+
+    // 上一次计算速率时的值，只由循环线程写
+    private final AtomicLong tickTime = new AtomicLong(System.nanoTime());
+    private final AtomicLong tickBytesRead = new AtomicLong();
+    private final AtomicLong tickBytesWritten = new AtomicLong();
+    private final AtomicLong tickAccepts = new AtomicLong();
+    private volatile double bytesReadRate;
+    private volatile double bytesWrittenRate;
+    private volatile double acceptRate;
+
+    private ObjectName objectName;
+
+    public EventLoopMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 循环线程每一轮调用一次
+     *
+     * @param selectStart 调用 select() 之前的 System.nanoTime()
+     * @param selectEnd   select() 返回之后的 System.nanoTime()
+     * @param end         这一轮处理完的 System.nanoTime()
+     */
+    public void recordIteration(long selectStart, long selectEnd, long end, int ready) {
+        if (resetRequested) {
+            resetRequested = false;
+            selectWait.reset();
+            processing.reset();
+            readyKeys.reset();
+        }
+        selectWait.record(selectEnd - selectStart);
+        processing.record(end - selectEnd);
+        readyKeys.record(ready);
+
+        long elapsed = end - tickTime.get();
+        if (elapsed >= RATE_INTERVAL_NANOS) {
+            long read = bytesRead.get();
+            long written = bytesWritten.get();
+            long accepted = accepts.get();
+            bytesReadRate = (read - tickBytesRead.get()) * 1e9 / elapsed;
+            bytesWrittenRate = (written - tickBytesWritten.get()) * 1e9 / elapsed;
+            acceptRate = (accepted - tickAccepts.get()) * 1e9 / elapsed;
+            tickBytesRead.lazySet(read);
+            tickBytesWritten.lazySet(written);
+            tickAccepts.lazySet(accepted);
+            tickTime.lazySet(end);
+        }
+    }
+
+    // 以下在循环线程中调用
+    public void addBytesRead(long n) {
+        bytesRead.lazySet(bytesRead.get() + n);
+    }
+
+    public void addBytesWritten(long n) {
+        bytesWritten.lazySet(bytesWritten.get() + n);
+    }
+
+    public void addAccepts(long n) {
+        accepts.lazySet(accepts.get() + n);
+    }
+
+    // 连接数在注册、关闭的线程中变化，可以在任意线程中调用
+    public void addConnections(long delta) {
+        connections.addAndGet(delta);
+    }
+
+    // 可以在任意线程中调用
+    public void addOutboundBytes(long delta) {
+        outboundBytes.addAndGet(delta);
+    }
+
+    /**
+     * 注册到平台的 MBeanServer，同名的已经存在时（同一个进程中有几个同名的循环）在名字后面加序号
+     */
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (int i = 1; ; i++) {
+                ObjectName candidate = new ObjectName(DOMAIN + ":type=EventLoop,name="
+                        + ObjectName.quote(i == 1 ? name : name + "#" + i));
+                try {
+                    server.registerMBean(this, candidate);
+                    objectName = candidate;
+                    return;
+                } catch (InstanceAlreadyExistsException ex) {
+                    // 换一个名字
+                }
+            }
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * 当前的统计，可以在任意线程中调用
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getWakeups() {
+        return selectWait.getCount();
+    }
+
+    @Override
+    public long getSelectWaitNanosP50() {
+        return selectWait.valueAtPercentile(50);
+    }
+
+    @Override
+    public long getSelectWaitNanosP99() {
+        return selectWait.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getSelectWaitNanosP999() {
+        return selectWait.valueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getSelectWaitNanosMax() {
+        return selectWait.getMax();
+    }
+
+    @Override
+    public long getProcessingNanosP50() {
+        return processing.valueAtPercentile(50);
+    }
+
+    @Override
+    public long getProcessingNanosP99() {
+        return processing.valueAtPercentile(99);
+    }
+
+    @Override
+    public long getProcessingNanosP999() {
+        return processing.valueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getProcessingNanosMax() {
+        return processing.getMax();
+    }
+
+    @Override
+    public double getMeanReadyKeys() {
+        return readyKeys.getMean();
+    }
+
+    @Override
+    public long getMaxReadyKeys() {
+        return readyKeys.getMax();
+    }
+
+    @Override
+    public double getBusyRatio() {
+        double busy = processing.getMean() * processing.getCount();
+        double total = busy + selectWait.getMean() * selectWait.getCount();
+        return total == 0 ? 0 : busy / total;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.get();
+    }
+
+    @Override
+    public double getBytesReadPerSecond() {
+        return rate(bytesReadRate, bytesRead, tickBytesRead);
+    }
+
+    @Override
+    public double getBytesWrittenPerSecond() {
+        return rate(bytesWrittenRate, bytesWritten, tickBytesWritten);
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return rate(acceptRate, accepts, tickAccepts);
+    }
+
+    // 循环阻塞在 select() 中时不会更新速率，超过两个周期没更新就用上次更新以来的平均值
+    private double rate(double lastRate, AtomicLong counter, AtomicLong tickValue) {
+        long elapsed = System.nanoTime() - tickTime.get();
+        if (elapsed < 2 * RATE_INTERVAL_NANOS) {
+            return lastRate;
+        }
+        return (counter.get() - tickValue.get()) * 1e9 / elapsed;
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes.get();
+    }
+
+    @Override
+    public long getPoolBuffersOutstanding() {
+        return BufferPool.shared().getBuffersOutstanding();
+    }
+
+    @Override
+    public long getPoolBytesOutstanding() {
+        return BufferPool.shared().getBytesOutstanding();
+    }
+
+    @Override
+    public void resetHistograms() {
+        resetRequested = true;
+    }
+
+    /**
+     * 某个时刻的统计，各个值是分别读取的，彼此之间可能有很小的偏差
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long wakeups;
+        private final long selectWaitP50;
+        private final long selectWaitP99;
+        private final long selectWaitP999;
+        private final long selectWaitMax;
+        private final long processingP50;
+        private final long processingP99;
+        private final long processingP999;
+        private final long processingMax;
+        private final double meanReadyKeys;
+        private final double busyRatio;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long accepts;
+        private final double bytesReadPerSecond;
+        private final double bytesWrittenPerSecond;
+        private final double acceptsPerSecond;
+        private final long connections;
+        private final long outboundBytes;
+        private final long poolBytesOutstanding;
+
+        Snapshot(EventLoopMetrics metrics) {
+            Histogram wait = metrics.selectWait.copy();
+            Histogram busy = metrics.processing.copy();
+            this.name = metrics.name;
+            this.wakeups = wait.getCount();
+            this.selectWaitP50 = wait.valueAtPercentile(50);
+            this.selectWaitP99 = wait.valueAtPercentile(99);
+            this.selectWaitP999 = wait.valueAtPercentile(99.9);
+            this.selectWaitMax = wait.getMax();
+            this.processingP50 = busy.valueAtPercentile(50);
+            this.processingP99 = busy.valueAtPercentile(99);
+            this.processingP999 = busy.valueAtPercentile(99.9);
+            this.processingMax = busy.getMax();
+            this.meanReadyKeys = metrics.getMeanReadyKeys();
+            this.busyRatio = metrics.getBusyRatio();
+            this.bytesRead = metrics.getBytesRead();
+            this.bytesWritten = metrics.getBytesWritten();
+            this.accepts = metrics.getAccepts();
+            this.bytesReadPerSecond = metrics.getBytesReadPerSecond();
+            this.bytesWrittenPerSecond = metrics.getBytesWrittenPerSecond();
+            this.acceptsPerSecond = metrics.getAcceptsPerSecond();
+            this.connections = metrics.getConnections();
+            this.outboundBytes = metrics.getOutboundBytes();
+            this.poolBytesOutstanding = metrics.getPoolBytesOutstanding();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWakeups() {
+            return wakeups;
+        }
+
+        public long getSelectWaitP50() {
+            return selectWaitP50;
+        }
+
+        public long getSelectWaitP99() {
+            return selectWaitP99;
+        }
+
+        public long getSelectWaitP999() {
+            return selectWaitP999;
+        }
+
+        public long getSelectWaitMax() {
+            return selectWaitMax;
+        }
+
+        public long getProcessingP50() {
+            return processingP50;
+        }
+
+        public long getProcessingP99() {
+            return processingP99;
+        }
+
+        public long getProcessingP999() {
+            return processingP999;
+        }
+
+        public long getProcessingMax() {
+            return processingMax;
+        }
+
+        public double getMeanReadyKeys() {
+            return meanReadyKeys;
+        }
+
+        public double getBusyRatio() {
+            return busyRatio;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getAccepts() {
+            return accepts;
+        }
+
+        public double getBytesReadPerSecond() {
+            return bytesReadPerSecond;
+        }
+
+        public double getBytesWrittenPerSecond() {
+            return bytesWrittenPerSecond;
+        }
+
+        public double getAcceptsPerSecond() {
+            return acceptsPerSecond;
+        }
+
+        public long getConnections() {
+            return connections;
+        }
+
+        public long getOutboundBytes() {
+            return outboundBytes;
+        }
+
+        public long getPoolBytesOutstanding() {
+            return poolBytesOutstanding;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: wakeups %d, select wait p50/p99/p999/max %d/%d/%d/%d us, "
+                            + "processing p50/p99/p999/max %d/%d/%d/%d us, keys/wakeup %.1f, busy %.1f%%, "
+                            + "read %d B (%.0f B/s), written %d B (%.0f B/s), accepts %d (%.0f/s), "
+                            + "connections %d, outbound %d B, pool %d B",
+                    name, wakeups,
+                    selectWaitP50 / 1000, selectWaitP99 / 1000, selectWaitP999 / 1000, selectWaitMax / 1000,
+                    processingP50 / 1000, processingP99 / 1000, processingP999 / 1000, processingMax / 1000,
+                    meanReadyKeys, busyRatio * 100, bytesRead, bytesReadPerSecond, bytesWritten, bytesWrittenPerSecond,
+                    accepts, acceptsPerSecond, connections, outboundBytes, poolBytesOutstanding);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.nianzuochen.nio;
+
+/**
+ * EventLoopMetrics 在 JMX 中的属性，名字是 com.nianzuochen.nio:type=EventLoop,name=线程名
+ * 时间的单位都是纳秒，延迟分布是从启动（或者上次 resetHistograms）到现在的
+ */
+public interface EventLoopMetricsMXBean {
+    String getName();
+
+    // select() 返回的次数
+    long getWakeups();
+
+    long getSelectWaitNanosP50();
+
+    long getSelectWaitNanosP99();
+
+    long getSelectWaitNanosP999();
+
+    long getSelectWaitNanosMax();
+
+    long getProcessingNanosP50();
+
+    long getProcessingNanosP99();
+
+    long getProcessingNanosP999();
+
+    long getProcessingNanosMax();
+
+    double getMeanReadyKeys();
+
+    long getMaxReadyKeys();
+
+    // 处理时间占（等待 + 处理）的比例，接近 1 时事件循环忙不过来
+    double getBusyRatio();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getAccepts();
+
+    double getBytesReadPerSecond();
+
+    double getBytesWrittenPerSecond();
+
+    double getAcceptsPerSecond();
+
+    long getConnections();
+
+    // 所有连接还没发送的字节数
+    long getOutboundBytes();
+
+    long getPoolBuffersOutstanding();
+
+    long getPoolBytesOutstanding();
+
+    // 在事件循环线程的下一轮清空延迟分布
+    void resetHistograms();
+}
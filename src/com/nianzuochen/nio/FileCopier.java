@@ -0,0 +1,211 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 根据文件大小和目标类型自动选择复制方式
+ *
+ * 一、目标类型
+ *      FILE    FileChannel
+ *      SOCKET  SocketChannel
+ *      PIPE    Pipe.SinkChannel 以及其他 WritableByteChannel
+ *
+ * 二、默认的选择
+ *      小于 heapThreshold（16K）：非直接缓冲区，一次读写就能完成，不值得分配本地内存
+ *      小于 directThreshold（1M）：直接缓冲区，省去堆和本地内存之间的拷贝
+ *      其余：FILE、SOCKET 使用 transferTo()，由内核完成复制（copy_file_range、sendfile）
+ *            PIPE 仍然用直接缓冲区，JDK 对管道的 transferTo() 本身就是在用户态循环复制
+ *      大于等于 mappedThreshold 的 FILE 使用分段内存映射，默认不启用，可以按 TestBenchmark 的结果调整
+ *
+ * 三、所有方式都会循环到全部传输完成，transferTo() 每次可能只传输一部分
+ *      目标通道必须是阻塞模式，非阻塞通道 write() 返回 0 时这里会一直重试
+ */
+public class FileCopier {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public enum Target {
+        FILE, SOCKET, PIPE
+    }
+
+    private final long heapThreshold;
+    private final long directThreshold;
+    private final long mappedThreshold;
+    private final int bufferSize;
+
+    public FileCopier() {
+        this(16 * 1024, 1024 * 1024, Long.MAX_VALUE, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FileCopier(long heapThreshold, long directThreshold, long mappedThreshold, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        }
+        this.heapThreshold = heapThreshold;
+        this.directThreshold = directThreshold;
+        this.mappedThreshold = mappedThreshold;
+        this.bufferSize = bufferSize;
+    }
+
+    public static Target targetOf(WritableByteChannel channel) {
+        if (channel instanceof FileChannel) {
+            return Target.FILE;
+        }
+        if (channel instanceof SocketChannel) {
+            return Target.SOCKET;
+        }
+        return Target.PIPE;
+    }
+
+    public CopyStrategy choose(long size, Target target) {
+        if (size < heapThreshold) {
+            return CopyStrategy.HEAP;
+        }
+        if (size < directThreshold || target == Target.PIPE) {
+            return CopyStrategy.DIRECT;
+        }
+        if (target == Target.FILE && size >= mappedThreshold) {
+            return CopyStrategy.MAPPED;
+        }
+        return CopyStrategy.TRANSFER;
+    }
+
+    // 复制文件，目标文件存在则覆盖
+    public CopyResult copy(Path source, Path target) throws IOException {
+        return copy(source, target, null);
+    }
+
+    /**
+     * @param strategy 为 null 时自动选择
+     */
+    public CopyResult copy(Path source, Path target, CopyStrategy strategy) throws IOException {
+        FileChannel inChannel = null;
+        FileChannel outChannel = null;
+        try {
+            inChannel = FileChannel.open(source, StandardOpenOption.READ);
+            // MAPPED 需要以 READ_WRITE 映射目标文件，所以统一加上 READ
+            outChannel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            return copy(inChannel, outChannel, strategy);
+        } finally {
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (outChannel != null) {
+                outChannel.close();
+            }
+        }
+    }
+
+    // 把文件发送到套接字、管道等通道
+    public CopyResult copy(Path source, WritableByteChannel target) throws IOException {
+        FileChannel inChannel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            return copy(inChannel, target, null);
+        } finally {
+            inChannel.close();
+        }
+    }
+
+    /**
+     * 从 inChannel 的当前位置复制到文件末尾
+     *
+     * @param strategy 为 null 时根据剩余大小和目标类型自动选择
+     */
+    public CopyResult copy(FileChannel inChannel, WritableByteChannel target, CopyStrategy strategy) throws IOException {
+        long position = inChannel.position();
+        long count = Math.max(0, inChannel.size() - position);
+        if (strategy == null) {
+            strategy = choose(count, targetOf(target));
+        }
+
+        long start = System.nanoTime();
+        long bytes;
+        switch (strategy) {
+            case HEAP:
+                bytes = copyBuffered(inChannel, target, ByteBuffer.allocate((int) Math.min(bufferSize, Math.max(count, 1))));
+                break;
+            case DIRECT:
+                ByteBuffer buf = BufferPool.shared().acquire(bufferSize);
+                try {
+                    bytes = copyBuffered(inChannel, target, buf);
+                } finally {
+                    BufferPool.shared().release(buf);
+                }
+                break;
+            case MAPPED:
+                bytes = copyMapped(inChannel, position, count, target);
+                inChannel.position(position + bytes);
+                break;
+            default:
+                bytes = transfer(inChannel, position, count, target);
+                inChannel.position(position + bytes);
+                break;
+        }
+        return new CopyResult(strategy, bytes, System.nanoTime() - start);
+    }
+
+    private long copyBuffered(FileChannel inChannel, WritableByteChannel target, ByteBuffer buf) throws IOException {
+        long bytes = 0;
+        int capacity = buf.limit();
+        while (inChannel.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                bytes += target.write(buf);
+            }
+            buf.clear();
+            buf.limit(capacity);
+        }
+        return bytes;
+    }
+
+    private long copyMapped(FileChannel inChannel, long position, long count, WritableByteChannel target) throws IOException {
+        if (target instanceof FileChannel) {
+            FileChannel outChannel = (FileChannel) target;
+            long copied = new MappedFileCopier().copy(inChannel, position, count, outChannel, outChannel.position());
+            outChannel.position(outChannel.position() + copied);
+            return copied;
+        }
+
+        // 其他通道：逐个窗口映射后写出
+        long copied = 0;
+        while (copied < count) {
+            long len = Math.min(MappedFileCopier.DEFAULT_WINDOW_SIZE, count - copied);
+            MappedByteBuffer window = inChannel.map(FileChannel.MapMode.READ_ONLY, position + copied, len);
+            try {
+                while (window.hasRemaining()) {
+                    target.write(window);
+                }
+            } finally {
+                DirectBuffers.unmap(window);
+            }
+            copied += len;
+        }
+        return copied;
+    }
+
+    // transferTo() 不保证一次传输完，需要循环
+    private long transfer(FileChannel inChannel, long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = inChannel.transferTo(position + transferred, count - transferred, target);
+            if (n <= 0 && position + transferred >= inChannel.size()) {
+                // 复制过程中文件被截短了
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+}
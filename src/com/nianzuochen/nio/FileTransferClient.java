@@ -0,0 +1,253 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件传输客户端（阻塞模式），协议见 FileTransferProtocol
+ * 一个客户端一个连接，依次发送请求，不能在多个线程中同时使用
+ *
+ * 并行上传 parallelUpload() 另外打开 streams 个连接，各自从同一个计数器领取下一块发送，快的连接多发。
+ * 每个连接连续发送，不等每块的确认，这样不会每块都停下来等一个往返；但最多只有 MAX_CHUNKS_IN_FLIGHT 块没有确认，
+ * 再多就先读确认：服务端每块都写一个确认，一直不读的话确认把两边的缓冲区填满，服务端阻塞在写确认上不再读，
+ * 客户端又阻塞在发送上，两边互相等待。
+ *
+ * 去重上传 dedupUpload() 先按内容分块，只发送服务端没有的块。
+ */
+public class FileTransferClient {
+    // 并行上传时每个连接最多发出多少块还没有收到确认
+    public static final int MAX_CHUNKS_IN_FLIGHT = 16;
+
+    private final SocketAddress address;
+    private final SocketChannel sChannel;
+
+    public FileTransferClient(SocketAddress address) throws IOException {
+        this.address = address;
+        this.sChannel = SocketChannel.open(address);
+    }
+
+    /**
+     * 查询服务端已有的长度，文件不存在时为 0
+     */
+    public long query(String name) throws IOException {
+        new FileTransferProtocol.Header(FileTransferProtocol.QUERY, name, 0, 0).write(sChannel);
+        return FileTransferProtocol.Response.read(sChannel).getValueOrThrow();
+    }
+
+    /**
+     * 从头上传整个文件
+     *
+     * @return 服务端的文件长度
+     */
+    public long upload(Path source, String name) throws IOException {
+        return upload(source, name, 0);
+    }
+
+    /**
+     * 断点续传：先查询服务端已有的长度，只上传剩下的部分。服务端的比本地还长时从头上传
+     *
+     * @return 服务端的文件长度
+     */
+    public long resumeUpload(Path source, String name) throws IOException {
+        long existing = query(name);
+        return upload(source, name, existing);
+    }
+
+    /**
+     * 上传 source 中从 offset 开始的部分，服务端已有的长度必须不小于 offset
+     */
+    public long upload(Path source, String name, long offset) throws IOException {
+        FileChannel inChannel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            long size = inChannel.size();
+            if (offset > size) {
+                offset = 0;
+            }
+            new FileTransferProtocol.Header(FileTransferProtocol.UPLOAD, name, size, offset).write(sChannel);
+            FileTransferProtocol.sendFile(inChannel, offset, size - offset, sChannel);
+            return FileTransferProtocol.Response.read(sChannel).getValueOrThrow();
+        } finally {
+            inChannel.close();
+        }
+    }
+
+    /**
+     * 下载到 target，target 已经存在时从它的长度处接着下载（断点续传）
+     *
+     * @return 这次收到的字节数
+     */
+    public long download(String name, Path target) throws IOException {
+        FileChannel outChannel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            long offset = outChannel.size();
+            new FileTransferProtocol.Header(FileTransferProtocol.DOWNLOAD, name, 0, offset).write(sChannel);
+            FileTransferProtocol.Response response = FileTransferProtocol.Response.read(sChannel);
+            if (response.getStatus() == FileTransferProtocol.BEYOND_SIZE) {
+                // 本地的比服务端还长，从头下载；其他错误（不存在、正在上传等）不动本地文件
+                outChannel.truncate(0);
+                offset = 0;
+                new FileTransferProtocol.Header(FileTransferProtocol.DOWNLOAD, name, 0, offset).write(sChannel);
+                response = FileTransferProtocol.Response.read(sChannel);
+            }
+            long size = response.getValueOrThrow();
+            return FileTransferProtocol.receiveFile(sChannel, outChannel, offset, size - offset);
+        } finally {
+            outChannel.close();
+        }
+    }
+
+    /**
+     * 把文件分成 chunkSize 大小的块，用 streams 个连接并行上传
+     * 失败后重新调用即可（chunkSize 可以不同），服务端按字节范围记录收到的部分，重叠的部分不会重复计数
+     *
+     * @return 服务端的文件长度
+     */
+    public long parallelUpload(final Path source, final String name, int streams, final long chunkSize) throws IOException {
+        if (streams <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("streams: " + streams + ", chunkSize: " + chunkSize);
+        }
+        final FileChannel inChannel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            final long size = inChannel.size();
+            if (size == 0) {
+                return upload(source, name);
+            }
+            final AtomicLong next = new AtomicLong();
+            final AtomicLong complete = new AtomicLong(-1);
+            streams = (int) Math.min(streams, (size + chunkSize - 1) / chunkSize);
+
+            ExecutorService executor = Executors.newFixedThreadPool(streams);
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            try {
+                for (int i = 0; i < streams; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            sendChunks(inChannel, name, size, chunkSize, next, complete);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (complete.get() < 0) {
+                throw new IOException("upload of " + name + " not complete");
+            }
+            return complete.get();
+        } finally {
+            inChannel.close();
+        }
+    }
+
+    /**
+     * 去重上传：先发送每块的哈希，服务端回复缺少哪些块，只发送这些块
+     *
+     * @return 实际发送的内容字节数（不含哈希），服务端已经有全部内容时为 0
+     */
+    public long dedupUpload(Path source, String name) throws IOException {
+        return dedupUpload(source, name, new ContentChunker());
+    }
+
+    public long dedupUpload(Path source, String name, ContentChunker chunker) throws IOException {
+        FileChannel inChannel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            long size = inChannel.size();
+            List<ContentChunker.Chunk> chunks = chunker.chunk(inChannel);
+            if (chunks.size() > FileTransferProtocol.MAX_MANIFEST_CHUNKS) {
+                throw new IOException("too many chunks: " + chunks.size());
+            }
+
+            new FileTransferProtocol.Header(FileTransferProtocol.MANIFEST, name, size, 0, chunks.size()).write(sChannel);
+            ByteBuffer entries = ByteBuffer.allocate(chunks.size() * FileTransferProtocol.MANIFEST_ENTRY_SIZE);
+            for (ContentChunker.Chunk chunk : chunks) {
+                entries.putLong(chunk.getHash()[0]).putLong(chunk.getHash()[1]).putInt(chunk.getLength());
+            }
+            entries.flip();
+            FileTransferProtocol.writeFully(sChannel, entries);
+
+            FileTransferProtocol.Response.read(sChannel).getValueOrThrow();
+            ByteBuffer missing = ByteBuffer.allocate((chunks.size() + 7) / 8);
+            FileTransferProtocol.readFully(sChannel, missing);
+
+            long sent = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                if ((missing.get(i >> 3) & (1 << (i & 7))) != 0) {
+                    ContentChunker.Chunk chunk = chunks.get(i);
+                    FileTransferProtocol.sendFile(inChannel, chunk.getOffset(), chunk.getLength(), sChannel);
+                    sent += chunk.getLength();
+                }
+            }
+
+            long length = FileTransferProtocol.Response.read(sChannel).getValueOrThrow();
+            if (length != size) {
+                throw new IOException("server assembled " + length + " of " + size + " bytes");
+            }
+            return sent;
+        } finally {
+            inChannel.close();
+        }
+    }
+
+    // 一个连接：领取并发送块，直到没有剩下的块；没有确认的块达到 MAX_CHUNKS_IN_FLIGHT 时先读一个确认
+    private void sendChunks(FileChannel inChannel, String name, long size, long chunkSize,
+                            AtomicLong next, AtomicLong complete) throws IOException {
+        SocketChannel stream = SocketChannel.open(address);
+        try {
+            int inFlight = 0;
+            long offset;
+            while ((offset = next.getAndAdd(chunkSize)) < size) {
+                if (inFlight == MAX_CHUNKS_IN_FLIGHT) {
+                    readAck(stream, complete);
+                    inFlight--;
+                }
+                long length = Math.min(chunkSize, size - offset);
+                new FileTransferProtocol.Header(FileTransferProtocol.CHUNK, name, size, offset, length).write(stream);
+                FileTransferProtocol.sendFile(inChannel, offset, length, stream);
+                inFlight++;
+            }
+            for (; inFlight > 0; inFlight--) {
+                readAck(stream, complete);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void readAck(SocketChannel stream, AtomicLong complete) throws IOException {
+        FileTransferProtocol.Response response = FileTransferProtocol.Response.read(stream);
+        response.getValueOrThrow();
+        if (response.getStatus() == FileTransferProtocol.COMPLETE) {
+            complete.set(response.getValue());
+        }
+    }
+
+    public void close() throws IOException {
+        sChannel.close();
+    }
+}
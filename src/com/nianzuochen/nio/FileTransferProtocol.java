@@ -0,0 +1,277 @@
+package com.nianzuochen.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 文件传输协议，FileTransferServer 和 FileTransferClient 共用
+ *
+ * 一、请求头：操作（1 字节）+ 文件名长度（2 字节）+ 文件名（UTF-8）+ 大小（8 字节）+ 偏移（8 字节）+ 长度（8 字节）
+ *      UPLOAD      上传，size 是文件的总大小，请求头后面紧跟着 [offset, size) 的内容，length 不用
+ *      DOWNLOAD    下载，从 offset 开始，size 和 length 不用
+ *      QUERY       查询服务端已有的长度，上传断点续传用
+ *      CHUNK       多个连接并行上传同一个文件中的一块，size 是文件的总大小，请求头后面紧跟着 [offset, offset + length) 的内容
+ *      MANIFEST    去重上传，length 是块数，请求头后面紧跟着每块的哈希（16 字节）和长度（4 字节），块由 ContentChunker 划分；
+ *                  响应后面紧跟着 (length + 7) / 8 字节的位图，第 i 位为 1 表示服务端没有第 i 块；
+ *                  客户端按顺序发送缺少的块的内容，服务端拼成文件后再回复一次
+ *
+ * 二、响应：状态（1 字节）+ 值（8 字节）+ 消息长度（2 字节）+ 消息（UTF-8）
+ *      UPLOAD 的值是上传后的文件长度，DOWNLOAD 的值是文件的总大小（后面紧跟着 [offset, size) 的内容），
+ *      DOWNLOAD 的 offset 超过文件大小时状态是 BEYOND_SIZE，值是文件的总大小，
+ *      QUERY 的值是已有的长度（不存在时为 0），
+ *      CHUNK 的值是这个文件已经收到的字节数，收齐的那一块的状态是 COMPLETE，
+ *      MANIFEST 的第一次回复的值是缺少的块数，第二次的值是拼好的文件长度
+ *
+ * 三、内容紧跟在请求头或者响应后面，由 transferTo / transferFrom 直接在文件和 socket 之间传输。
+ *      所以读请求头和响应时必须恰好读完，不能多读一个字节，否则多读的内容就不在 socket 里了。
+ *
+ * 四、一个连接上可以依次发送多个请求。
+ */
+public final class FileTransferProtocol {
+    public static final byte UPLOAD = 1;
+    public static final byte DOWNLOAD = 2;
+    public static final byte QUERY = 3;
+    public static final byte CHUNK = 4;
+    public static final byte MANIFEST = 5;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    // CHUNK 的最后一块收到了，文件已经完整
+    public static final byte COMPLETE = 2;
+    // DOWNLOAD 的 offset 超过了文件大小（本地的比服务端还长），值是服务端的文件大小
+    public static final byte BEYOND_SIZE = 3;
+
+    public static final int MAX_NAME_LENGTH = 1024;
+    // 一个 MANIFEST 最多的块数，平均 8K 一块时大约是 8G 的文件
+    public static final int MAX_MANIFEST_CHUNKS = 1024 * 1024;
+    // MANIFEST 中每块的哈希和长度
+    public static final int MANIFEST_ENTRY_SIZE = 20;
+
+    private FileTransferProtocol() {
+    }
+
+    public static class Header {
+        private final byte op;
+        private final String name;
+        private final long size;
+        private final long offset;
+        private final long length;
+
+        public Header(byte op, String name, long size, long offset) {
+            this(op, name, size, offset, 0);
+        }
+
+        public Header(byte op, String name, long size, long offset, long length) {
+            this.op = op;
+            this.name = name;
+            this.size = size;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public byte getOp() {
+            return op;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void write(WritableByteChannel channel) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("name too long: " + name);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(3 + bytes.length + 24);
+            buf.put(op).putShort((short) bytes.length).put(bytes).putLong(size).putLong(offset).putLong(length);
+            buf.flip();
+            writeFully(channel, buf);
+        }
+
+        /**
+         * 读一个请求头
+         *
+         * @return 对方在请求之间关闭了连接时返回 null
+         */
+        public static Header read(ReadableByteChannel channel) throws IOException {
+            ByteBuffer fixed = ByteBuffer.allocate(3);
+            if (channel.read(fixed) == -1) {
+                return null;
+            }
+            readFully(channel, fixed);
+            byte op = fixed.get(0);
+            int nameLength = fixed.getShort(1) & 0xFFFF;
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new IOException("name too long: " + nameLength);
+            }
+
+            ByteBuffer rest = ByteBuffer.allocate(nameLength + 24);
+            readFully(channel, rest);
+            String name = new String(rest.array(), 0, nameLength, StandardCharsets.UTF_8);
+            return new Header(op, name, rest.getLong(nameLength), rest.getLong(nameLength + 8), rest.getLong(nameLength + 16));
+        }
+
+        @Override
+        public String toString() {
+            return "Header[op=" + op + ", name=" + name + ", size=" + size + ", offset=" + offset + ", length=" + length + "]";
+        }
+    }
+
+    public static class Response {
+        private final byte status;
+        private final long value;
+        private final String message;
+
+        public Response(byte status, long value, String message) {
+            this.status = status;
+            this.value = value;
+            this.message = message;
+        }
+
+        public static Response ok(long value) {
+            return new Response(OK, value, "");
+        }
+
+        public static Response error(String message) {
+            return new Response(ERROR, -1, message);
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isOk() {
+            return status == OK || status == COMPLETE;
+        }
+
+        // 不成功时抛出 IOException
+        public long getValueOrThrow() throws IOException {
+            if (!isOk()) {
+                throw new IOException(message);
+            }
+            return value;
+        }
+
+        public void write(WritableByteChannel channel) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, MAX_NAME_LENGTH);
+            ByteBuffer buf = ByteBuffer.allocate(11 + length);
+            buf.put(status).putLong(value).putShort((short) length).put(bytes, 0, length);
+            buf.flip();
+            writeFully(channel, buf);
+        }
+
+        public static Response read(ReadableByteChannel channel) throws IOException {
+            ByteBuffer fixed = ByteBuffer.allocate(11);
+            readFully(channel, fixed);
+            int length = fixed.getShort(9) & 0xFFFF;
+            if (length > MAX_NAME_LENGTH) {
+                throw new IOException("message too long: " + length);
+            }
+            ByteBuffer message = ByteBuffer.allocate(length);
+            readFully(channel, message);
+            return new Response(fixed.get(0), fixed.getLong(1),
+                    new String(message.array(), 0, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String toString() {
+            return "Response[status=" + status + ", value=" + value + ", message=" + message + "]";
+        }
+    }
+
+    /**
+     * 把 buf 读满，只读 buf.remaining() 个字节
+     */
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                throw new EOFException("connection closed, " + buf.remaining() + " bytes missing");
+            }
+        }
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * 把 file 的 [position, position + count) 发送到 socket，循环到发完为止
+     * Linux 上是 sendfile，数据不经过用户空间
+     */
+    public static void sendFile(FileChannel file, long position, long count, WritableByteChannel socket) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = file.transferTo(position, end - position, socket);
+            if (n == 0 && position >= file.size()) {
+                throw new EOFException("file truncated at " + position);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * 从阻塞的 socket 接收 count 个字节写到 file 的 position 处，循环到收完为止
+     * 阻塞模式下 transferFrom 返回 0 说明对方已经关闭。
+     * 源是 socket 时 JDK 内部经过一个临时直接缓冲区，不是 splice，但省掉了堆缓冲区和一次复制
+     *
+     * @return 实际收到的字节数，对方提前关闭时抛出 EOFException，收到的部分已经写进文件
+     */
+    public static long receiveFile(ReadableByteChannel socket, FileChannel file, long position, long count) throws IOException {
+        long received = 0;
+        while (received < count) {
+            long n = file.transferFrom(socket, position + received, count - received);
+            if (n == 0) {
+                throw new EOFException("connection closed after " + received + " of " + count + " bytes");
+            }
+            received += n;
+        }
+        return received;
+    }
+
+    /**
+     * 检查文件名只是一个文件名，不能带目录，防止写到 root 外面；以 . 开头的名字留给服务端自己用
+     */
+    public static Path resolve(Path root, String name) throws IOException {
+        Path fileName;
+        try {
+            fileName = Paths.get(name).getFileName();
+        } catch (InvalidPathException ex) {
+            throw new IOException("invalid name: " + name, ex);
+        }
+        if (name.isEmpty() || fileName == null || !fileName.toString().equals(name) || name.startsWith(".")) {
+            throw new IOException("invalid name: " + name);
+        }
+        return root.resolve(fileName);
+    }
+}
@@ -0,0 +1,724 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件传输服务端（阻塞模式），协议见 FileTransferProtocol，文件都放在 root 目录下
+ *
+ * 一、TestBlockingNIO2.server 用 1K 的堆缓冲区：socket -> 内核 -> 堆缓冲区 -> 内核 -> 文件，
+ *      这里用 transferFrom / transferTo，内容不经过 Java 堆。
+ *
+ * 二、断点续传：上传前先把文件截断到 offset，文件长度始终是已经收到的连续部分，
+ *      连接中断后客户端用 QUERY 查到这个长度，从这里接着传。
+ *
+ * 三、每个连接一个任务，代码还是 TestBlockingNIO2 那样简单的阻塞写法。
+ *      JDK 21 以上用虚拟线程（每个连接一个），阻塞在 socket 上时不占用平台线程，几千个并发上传也只需要几个平台线程；
+ *      更低的版本用缓存线程池，每个连接一个平台线程。为了在 JDK 8 上也能编译，虚拟线程通过反射创建。
+ *
+ * 四、两个限制，超过时上传在服务端排队等待（此时不读 socket，TCP 流量控制让客户端也慢下来）
+ *      maxConcurrentUploads    同时上传的文件数
+ *      maxBytesInFlight        所有上传同时在传输的字节数，每次 transferFrom 最多 CHUNK_SIZE 字节，传之前先申请额度
+ *
+ * 五、同一个文件同时只能有一个上传，后来的收到错误后断开。
+ *
+ * 六、并行上传（CHUNK）：一个文件分成很多块，由客户端的多个连接同时发送，多个 TCP 连接一起填满带宽，
+ *      不受单个连接拥塞窗口的限制。第一块到达时先把文件设置成总大小（稀疏文件），
+ *      所有连接共用这一个 FileChannel，按块的偏移用 transferFrom 写入，互不影响。
+ *      FileChannel 按正在使用的连接计数，最后一个连接用完、而且上传已经收齐、作废或者超时之后才关闭；
+ *      并行上传和 UPLOAD / MANIFEST 一样占用这个文件的上传名额，不管有几个连接在发送，也只占一个同时上传的名额
+ *      （maxConcurrentUploads），第一个连接占用，关闭时归还；超过 CHUNKED_IDLE_TIMEOUT_MILLIS 没有新的块就作废
+ *      （在有新连接或者新的块到达时检查）。
+ *      每块都回复一个确认，服务端按字节范围记录收到的部分，重复或者重叠的部分不重复计数（重试时块大小可以不同），
+ *      收齐的那一块回复 COMPLETE。收齐之后 CHUNKED_IDLE_TIMEOUT_MILLIS 之内再到达的重复或者重试的块，
+ *      目标文件还是这个大小的话直接读掉并回复 COMPLETE，不再重新开始一个上传。
+ *
+ * 七、去重上传（MANIFEST）：客户端先发送按内容分块后每块的哈希，服务端在 ChunkStore（root/.chunks）中查找，
+ *      回复缺少哪些块，客户端只发送这些块。服务端收齐后按顺序把块 transferTo 到目标文件。
+ *      内容大部分相同的文件再次上传时，网络上只传输变化的部分。
+ */
+public class FileTransferServer {
+    // 每次 transferFrom 最多传输的字节数，也是申请额度的单位
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    // 并行上传超过这么久没有任何连接发送块就作废，关闭文件，让出上传名额
+    public static final long CHUNKED_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final Path root;
+    private final SocketAddress address;
+    private final int maxConcurrentUploads;
+    private final int maxKilobytesInFlight;
+    private final Semaphore uploads;
+    // 以 KB 为单位的额度，Semaphore 的许可数是 int
+    private final Semaphore bytesInFlight;
+    // 正在上传的文件：UPLOAD / MANIFEST 放 Boolean.TRUE，并行上传放对应的 ChunkedUpload
+    private final ConcurrentHashMap<Path, Object> uploading = new ConcurrentHashMap<Path, Object>();
+    // 正在并行上传的文件，由 chunked 自己保护
+    private final Map<Path, ChunkedUpload> chunked = new HashMap<Path, ChunkedUpload>();
+    // 最近收齐的并行上传，超时后和空闲的上传一起清理，由 chunked 保护
+    private final Map<Path, ChunkedUpload> completed = new HashMap<Path, ChunkedUpload>();
+    private ChunkStore chunkStore;
+    // 已经接收的连接 -> 是否在等下一个请求，shutdown() 时关闭在等的连接
+    private final ConcurrentHashMap<SocketChannel, Boolean> connections = new ConcurrentHashMap<SocketChannel, Boolean>();
+
+    private ServerSocketChannel ssChannel;
+    private ExecutorService executor;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    public FileTransferServer(Path root, int port) {
+        this(root, new InetSocketAddress(port), 1024, 256L * 1024 * 1024);
+    }
+
+    public FileTransferServer(Path root, SocketAddress address) {
+        this(root, address, 1024, 256L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxConcurrentUploads 同时上传的文件数
+     * @param maxBytesInFlight     所有上传同时在传输的字节数，至少 CHUNK_SIZE
+     */
+    public FileTransferServer(Path root, SocketAddress address, int maxConcurrentUploads, long maxBytesInFlight) {
+        if (maxConcurrentUploads <= 0 || maxBytesInFlight < CHUNK_SIZE) {
+            throw new IllegalArgumentException("maxConcurrentUploads: " + maxConcurrentUploads
+                    + ", maxBytesInFlight: " + maxBytesInFlight);
+        }
+        this.root = root;
+        this.address = address;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxKilobytesInFlight = (int) Math.min(Integer.MAX_VALUE, maxBytesInFlight / 1024);
+        this.uploads = new Semaphore(maxConcurrentUploads, true);
+        this.bytesInFlight = new Semaphore(maxKilobytesInFlight, true);
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(root);
+        chunkStore = new ChunkStore(root.resolve(".chunks"));
+        ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(address, 1024);
+        executor = newExecutor();
+
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "file-server");
+        acceptor.start();
+    }
+
+    // 实际监听的地址，端口为 0 时由系统分配
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) ssChannel.getLocalAddress();
+    }
+
+    // 是否在用虚拟线程
+    public boolean isVirtualThreads() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    // 正在上传的文件数
+    public int getActiveUploads() {
+        return maxConcurrentUploads - uploads.availablePermits();
+    }
+
+    // 正在传输的字节数（按 KB 取整）
+    public long getBytesInFlight() {
+        return (maxKilobytesInFlight - bytesInFlight.availablePermits()) * 1024L;
+    }
+
+    /**
+     * 不再接收新的连接。在等下一个请求的连接直接关闭（否则客户端一直不发请求的话，awaitTermination() 永远等下去），
+     * 正在处理请求的连接处理完这个请求后关闭
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            // 关闭后阻塞在 accept() 上的线程会收到 AsynchronousCloseException
+            ssChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Map.Entry<SocketChannel, Boolean> entry : connections.entrySet()) {
+            if (entry.getValue()) {
+                try {
+                    entry.getKey().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 等待接收线程退出，已经接收的连接处理完当前的请求
+    public void awaitTermination() throws InterruptedException {
+        if (acceptor != null) {
+            acceptor.join();
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        List<ChunkedUpload> closing;
+        synchronized (chunked) {
+            closing = new ArrayList<ChunkedUpload>(chunked.values());
+            for (ChunkedUpload upload : closing) {
+                retire(upload);
+            }
+        }
+        for (ChunkedUpload upload : closing) {
+            upload.close();
+        }
+    }
+
+    /**
+     * JDK 21 以上每个任务一个虚拟线程，否则每个任务一个平台线程（缓存线程池）
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            SocketChannel sChannel;
+            try {
+                sChannel = ssChannel.accept();
+            } catch (AsynchronousCloseException ex) {
+                break;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                break;
+            }
+            closeIdleChunked();
+            final SocketChannel connection = sChannel;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(connection);
+                }
+            });
+        }
+    }
+
+    // 处理一个连接上的所有请求，直到客户端关闭
+    void serve(SocketChannel sChannel) {
+        // 先登记再检查 running，和 shutdown() 的顺序相反，两边至少有一边看到对方
+        connections.put(sChannel, Boolean.TRUE);
+        try {
+            FileTransferProtocol.Header header;
+            while (running && (header = FileTransferProtocol.Header.read(sChannel)) != null) {
+                connections.put(sChannel, Boolean.FALSE);
+                handle(header, sChannel);
+                connections.put(sChannel, Boolean.TRUE);
+            }
+        } catch (IOException ex) {
+            // 客户端中途断开，已经收到的部分保留在文件中，可以续传；shutdown() 关闭的不用打印
+            if (running) {
+                System.err.println(sChannel + ": " + ex);
+            }
+        } finally {
+            connections.remove(sChannel);
+            try {
+                sChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(FileTransferProtocol.Header header, SocketChannel sChannel) throws IOException {
+        Path path;
+        try {
+            path = FileTransferProtocol.resolve(root, header.getName());
+        } catch (IOException ex) {
+            if (header.getOp() == FileTransferProtocol.UPLOAD) {
+                // 后面跟着的内容没法跳过，只能断开
+                throw ex;
+            }
+            FileTransferProtocol.Response.error(ex.getMessage()).write(sChannel);
+            return;
+        }
+
+        switch (header.getOp()) {
+            case FileTransferProtocol.UPLOAD:
+                upload(header, path, sChannel);
+                break;
+            case FileTransferProtocol.DOWNLOAD:
+                download(header, path, sChannel);
+                break;
+            case FileTransferProtocol.CHUNK:
+                chunk(header, path, sChannel);
+                break;
+            case FileTransferProtocol.MANIFEST:
+                manifest(header, path, sChannel);
+                break;
+            case FileTransferProtocol.QUERY:
+                long length = Files.exists(path) ? Files.size(path) : 0;
+                FileTransferProtocol.Response.ok(length).write(sChannel);
+                break;
+            default:
+                throw new IOException("unknown op: " + header.getOp());
+        }
+    }
+
+    private void upload(FileTransferProtocol.Header header, Path path, SocketChannel sChannel) throws IOException {
+        long size = header.getSize();
+        long offset = header.getOffset();
+        if (offset < 0 || offset > size) {
+            throw new IOException("invalid range: " + header);
+        }
+
+        if (uploading.putIfAbsent(path, Boolean.TRUE) != null) {
+            FileTransferProtocol.Response.error("already uploading: " + header.getName()).write(sChannel);
+            throw new IOException("already uploading: " + header.getName());
+        }
+        try {
+            acquire(uploads, 1);
+            try {
+                receive(path, offset, size, sChannel);
+            } finally {
+                uploads.release();
+            }
+        } finally {
+            uploading.remove(path);
+        }
+    }
+
+    private void receive(Path path, long offset, long size, SocketChannel sChannel) throws IOException {
+        FileChannel outChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            if (offset > outChannel.size()) {
+                // 中间缺了一段，内容没法跳过，只能断开
+                throw new IOException("offset " + offset + " beyond current length " + outChannel.size());
+            }
+            outChannel.truncate(offset);
+            receiveRange(sChannel, outChannel, offset, size);
+            FileTransferProtocol.Response.ok(outChannel.size()).write(sChannel);
+        } finally {
+            outChannel.close();
+        }
+    }
+
+    // 把 [position, end) 写到 outChannel，每 CHUNK_SIZE 字节申请一次额度
+    private void receiveRange(SocketChannel sChannel, FileChannel outChannel, long position, long end) throws IOException {
+        while (position < end) {
+            int chunk = (int) Math.min(CHUNK_SIZE, end - position);
+            int permits = (chunk + 1023) / 1024;
+            acquire(bytesInFlight, permits);
+            try {
+                position += FileTransferProtocol.receiveFile(sChannel, outChannel, position, chunk);
+            } finally {
+                bytesInFlight.release(permits);
+            }
+        }
+    }
+
+    private void chunk(FileTransferProtocol.Header header, Path path, SocketChannel sChannel) throws IOException {
+        long size = header.getSize();
+        long offset = header.getOffset();
+        long length = header.getLength();
+        if (offset < 0 || length <= 0 || size < 0 || offset > size - length) {
+            // 后面跟着的内容没法跳过，只能断开
+            throw new IOException("invalid chunk: " + header);
+        }
+
+        closeIdleChunked();
+        if (isCompleted(path, size)) {
+            // 上传收齐之后才到达的重复或者重试的块，内容已经有了
+            discard(sChannel, length);
+            new FileTransferProtocol.Response(FileTransferProtocol.COMPLETE, size, "").write(sChannel);
+            return;
+        }
+        ChunkedUpload upload = acquireChunked(path, size);
+        if (upload == null) {
+            FileTransferProtocol.Response.error("already uploading: " + header.getName()).write(sChannel);
+            // 后面跟着的内容没法跳过，只能断开
+            throw new IOException("already uploading: " + header.getName());
+        }
+
+        long received;
+        try {
+            FileChannel channel;
+            try {
+                // 文件在全局锁之外打开，同一个文件的其他连接在 upload 上等待
+                channel = upload.open();
+            } catch (IOException ex) {
+                synchronized (chunked) {
+                    retire(upload);
+                }
+                throw ex;
+            }
+
+            upload.takeSlot();
+            receiveRange(sChannel, channel, offset, offset + length);
+
+            received = upload.received(offset, length);
+            if (received == size) {
+                synchronized (chunked) {
+                    retire(upload);
+                    completed.put(path, upload);
+                }
+            }
+        } finally {
+            releaseChunked(upload);
+        }
+
+        if (received < size) {
+            FileTransferProtocol.Response.ok(received).write(sChannel);
+        } else {
+            new FileTransferProtocol.Response(FileTransferProtocol.COMPLETE, size, "").write(sChannel);
+        }
+    }
+
+    // path 最近用 size 这个总大小收齐过，没有正在进行的并行上传，目标文件也还是这个大小
+    private boolean isCompleted(Path path, long size) {
+        synchronized (chunked) {
+            ChunkedUpload upload = completed.get(path);
+            if (upload == null || upload.size != size || chunked.containsKey(path)) {
+                return false;
+            }
+        }
+        try {
+            return Files.size(path) == size;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // 读掉 socket 上接下来的 length 字节
+    private static void discard(SocketChannel sChannel, long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, CHUNK_SIZE));
+        while (length > 0) {
+            buf.clear();
+            buf.limit((int) Math.min(length, buf.capacity()));
+            FileTransferProtocol.readFully(sChannel, buf);
+            length -= buf.limit();
+        }
+    }
+
+    /**
+     * 取得 path 的并行上传并占用一次，用完后调用 releaseChunked()
+     *
+     * @return 这个文件正在 UPLOAD / MANIFEST，或者正在用不同的总大小并行上传时返回 null
+     */
+    private ChunkedUpload acquireChunked(Path path, long size) {
+        ChunkedUpload stale = null;
+        ChunkedUpload upload;
+        synchronized (chunked) {
+            upload = chunked.get(path);
+            if (upload != null && upload.size != size) {
+                if (upload.refs > 0) {
+                    return null;
+                }
+                // 同名文件换了内容，之前没传完的作废
+                retire(upload);
+                stale = upload;
+                upload = null;
+            }
+            if (upload == null) {
+                upload = new ChunkedUpload(path, size, uploads);
+                if (uploading.putIfAbsent(path, upload) != null) {
+                    upload = null;
+                } else {
+                    chunked.put(path, upload);
+                    completed.remove(path);
+                }
+            }
+            if (upload != null) {
+                upload.refs++;
+                upload.lastActive = System.nanoTime();
+            }
+        }
+        if (stale != null) {
+            stale.close();
+        }
+        return upload;
+    }
+
+    private void releaseChunked(ChunkedUpload upload) {
+        boolean close;
+        synchronized (chunked) {
+            upload.refs--;
+            upload.lastActive = System.nanoTime();
+            close = upload.retired && upload.refs == 0;
+        }
+        if (close) {
+            upload.close();
+        }
+    }
+
+    // 从 chunked 中移除并让出上传名额，调用者持有 chunked 的锁；没有连接在用时由调用者关闭，否则由最后一个连接关闭
+    private void retire(ChunkedUpload upload) {
+        if (upload.retired) {
+            return;
+        }
+        upload.retired = true;
+        chunked.remove(upload.path, upload);
+        uploading.remove(upload.path, upload);
+    }
+
+    // 关闭超过 CHUNKED_IDLE_TIMEOUT_MILLIS 没有连接发送块的并行上传，同时忘掉收齐超过这么久的上传
+    private void closeIdleChunked() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(CHUNKED_IDLE_TIMEOUT_MILLIS);
+        List<ChunkedUpload> idle = null;
+        synchronized (chunked) {
+            Iterator<ChunkedUpload> it = completed.values().iterator();
+            while (it.hasNext()) {
+                ChunkedUpload upload = it.next();
+                if (upload.refs == 0 && now - upload.lastActive > timeout) {
+                    it.remove();
+                }
+            }
+            for (ChunkedUpload upload : chunked.values()) {
+                if (upload.refs == 0 && now - upload.lastActive > timeout) {
+                    if (idle == null) {
+                        idle = new ArrayList<ChunkedUpload>();
+                    }
+                    idle.add(upload);
+                }
+            }
+            if (idle == null) {
+                return;
+            }
+            for (ChunkedUpload upload : idle) {
+                retire(upload);
+            }
+        }
+        for (ChunkedUpload upload : idle) {
+            upload.close();
+        }
+    }
+
+    private void manifest(FileTransferProtocol.Header header, Path path, final SocketChannel sChannel) throws IOException {
+        long count = header.getLength();
+        if (count < 0 || count > FileTransferProtocol.MAX_MANIFEST_CHUNKS) {
+            throw new IOException("invalid manifest: " + header);
+        }
+        ByteBuffer entries = ByteBuffer.allocate((int) count * FileTransferProtocol.MANIFEST_ENTRY_SIZE);
+        FileTransferProtocol.readFully(sChannel, entries);
+        entries.flip();
+
+        String[] hashes = new String[(int) count];
+        int[] lengths = new int[(int) count];
+        long total = 0;
+        long[] hash = new long[2];
+        byte[] missing = new byte[(int) ((count + 7) / 8)];
+        int missingCount = 0;
+        Set<String> requested = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            hash[0] = entries.getLong();
+            hash[1] = entries.getLong();
+            hashes[i] = MurmurHash3.toHex(hash);
+            lengths[i] = entries.getInt();
+            if (lengths[i] <= 0) {
+                throw new IOException("invalid chunk length: " + lengths[i]);
+            }
+            total += lengths[i];
+            // 同一个文件中重复的块也只要一次
+            if (!chunkStore.contains(hashes[i]) && requested.add(hashes[i])) {
+                missing[i >> 3] |= 1 << (i & 7);
+                missingCount++;
+            }
+        }
+        if (total != header.getSize()) {
+            throw new IOException("manifest covers " + total + " of " + header.getSize() + " bytes");
+        }
+
+        if (uploading.putIfAbsent(path, Boolean.TRUE) != null) {
+            FileTransferProtocol.Response.error("already uploading: " + header.getName()).write(sChannel);
+            return;
+        }
+        try {
+            FileTransferProtocol.Response.ok(missingCount).write(sChannel);
+            FileTransferProtocol.writeFully(sChannel, ByteBuffer.wrap(missing));
+
+            acquire(uploads, 1);
+            try {
+                for (int i = 0; i < count; i++) {
+                    if ((missing[i >> 3] & (1 << (i & 7))) == 0) {
+                        continue;
+                    }
+                    final int length = lengths[i];
+                    chunkStore.put(hashes[i], length, new ChunkStore.Receiver() {
+                        @Override
+                        public void receive(FileChannel channel) throws IOException {
+                            receiveRange(sChannel, channel, 0, length);
+                        }
+                    });
+                }
+            } finally {
+                uploads.release();
+            }
+
+            // 按顺序拼起来，块文件到目标文件也是 transferTo，不经过用户空间
+            FileChannel outChannel = FileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                long position = 0;
+                for (int i = 0; i < count; i++) {
+                    FileChannel chunk = chunkStore.open(hashes[i]);
+                    try {
+                        FileTransferProtocol.sendFile(chunk, 0, lengths[i], outChannel);
+                    } finally {
+                        chunk.close();
+                    }
+                    position += lengths[i];
+                }
+                FileTransferProtocol.Response.ok(position).write(sChannel);
+            } finally {
+                outChannel.close();
+            }
+        } finally {
+            uploading.remove(path);
+        }
+    }
+
+    // 一个正在并行上传的文件
+    private static class ChunkedUpload {
+        private final Path path;
+        private final long size;
+        private final Semaphore uploads;
+        // 第一个连接调用 open() 时打开，由 this 保护
+        private FileChannel channel;
+        // 是否占着一个同时上传的名额，由 this 保护
+        private boolean slot;
+        // 正在使用的连接数、最后一次使用的时间、是否已经移出 chunked，由 chunked 保护
+        private int refs;
+        private long lastActive;
+        private boolean retired;
+        // 已经收到的字节范围，起始位置 -> 结束位置，相邻或重叠的合并成一个，由 this 保护
+        private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+        private long received;
+
+        ChunkedUpload(Path path, long size, Semaphore uploads) {
+            this.path = path;
+            this.size = size;
+            this.uploads = uploads;
+        }
+
+        // 第一个发送块的连接为整个上传占一个名额，其他连接等它占到
+        synchronized void takeSlot() throws IOException {
+            if (!slot) {
+                acquire(uploads, 1);
+                slot = true;
+            }
+        }
+
+        synchronized FileChannel open() throws IOException {
+            if (channel == null) {
+                FileChannel opened = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                try {
+                    opened.truncate(size);
+                    if (opened.size() < size) {
+                        // 设置文件长度，中间没写的部分是空洞，不占磁盘
+                        opened.write(ByteBuffer.allocate(1), size - 1);
+                    }
+                } catch (IOException ex) {
+                    opened.close();
+                    throw ex;
+                }
+                channel = opened;
+            }
+            return channel;
+        }
+
+        // 记录收到了 [offset, offset + length)，返回一共收到的字节数，重叠的部分只算一次
+        synchronized long received(long offset, long length) {
+            long start = offset;
+            long end = offset + length;
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                received -= before.getValue() - before.getKey();
+                ranges.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                received -= after.getValue() - after.getKey();
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+            received += end - start;
+            return received;
+        }
+
+        synchronized void close() {
+            if (slot) {
+                uploads.release();
+                slot = false;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws IOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        }
+    }
+
+    private void download(FileTransferProtocol.Header header, Path path, SocketChannel sChannel) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            FileTransferProtocol.Response.error("not found: " + header.getName()).write(sChannel);
+            return;
+        }
+        FileChannel inChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = inChannel.size();
+            long offset = header.getOffset();
+            if (offset < 0) {
+                FileTransferProtocol.Response.error("offset: " + offset).write(sChannel);
+                return;
+            }
+            if (offset > size) {
+                new FileTransferProtocol.Response(FileTransferProtocol.BEYOND_SIZE, size,
+                        "offset " + offset + " beyond size " + size).write(sChannel);
+                return;
+            }
+            FileTransferProtocol.Response.ok(size).write(sChannel);
+            FileTransferProtocol.sendFile(inChannel, offset, size - offset, sChannel);
+        } finally {
+            inChannel.close();
+        }
+    }
+}
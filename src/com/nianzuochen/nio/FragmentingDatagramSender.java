@@ -0,0 +1,107 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 把大消息切成不超过 MTU 的分片发送，接收端用 DatagramReassembler 重组
+ *
+ * 一、TestNonBlockingNIO2 的数据报都用 1024 字节的缓冲区接收，更长的数据报被截断，多出来的部分直接丢掉；
+ *      数据报本身最大也只有 64KB，超过 MTU 时还会被 IP 分片，丢一个 IP 分片整个数据报就没了。
+ *
+ * 二、每个分片一个头：
+ *      [消息 id 4][分片序号 2][分片数 2][消息总长度 4][分片在消息中的偏移 4]
+ *      接收端按偏移直接放到消息的缓冲区中，分片乱序到达也没关系。
+ *
+ * 三、发送时不复制：头和消息的一段用 gathering write 组成一个数据报。
+ *      每个分片从令牌桶取一个令牌，几百 KB 的消息不会一下子塞满接收端的 socket 接收缓冲区。
+ *
+ * 四、只切分和限速，不重传，丢了分片的消息由接收端超时后报告。不是线程安全的，只能在一个线程中使用。
+ */
+public class FragmentingDatagramSender {
+    public static final int HEADER_SIZE = 16;
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private final DatagramChannel channel;
+    private final TokenBucket bucket;
+    private final int fragmentSize;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private int nextId;
+    private long messages;
+    private long fragments;
+
+    public FragmentingDatagramSender(SocketAddress target, double fragmentsPerSecond) throws IOException {
+        this(target, new TokenBucket(fragmentsPerSecond, Math.max(1, fragmentsPerSecond / 100)),
+                PacedDatagramSender.DEFAULT_MTU);
+    }
+
+    /**
+     * @param bucket 每个分片一个令牌，可以和 PacedDatagramSender 共用一个令牌桶
+     */
+    public FragmentingDatagramSender(SocketAddress target, TokenBucket bucket, int mtu) throws IOException {
+        if (mtu <= HEADER_SIZE || mtu > 65507) {
+            throw new IllegalArgumentException("mtu: " + mtu);
+        }
+        this.bucket = bucket;
+        this.fragmentSize = mtu - HEADER_SIZE;
+        this.channel = DatagramChannel.open();
+        this.channel.connect(target);
+        this.gather[0] = header;
+    }
+
+    // 一条消息最多多少字节
+    public long getMaxMessageSize() {
+        return Math.min((long) fragmentSize * MAX_FRAGMENTS, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 发送 message 剩下的内容，令牌不够时等待
+     *
+     * @return 消息 id
+     */
+    public int send(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        if (length > getMaxMessageSize()) {
+            throw new IllegalArgumentException("message too large: " + length);
+        }
+        int id = nextId++;
+        int count = Math.max(1, (length + fragmentSize - 1) / fragmentSize);
+        int start = message.position();
+        int end = message.limit();
+        ByteBuffer payload = message.duplicate();
+        gather[1] = payload;
+        try {
+            for (int index = 0; index < count; index++) {
+                int offset = index * fragmentSize;
+                payload.limit(Math.min(end, start + offset + fragmentSize)).position(start + offset);
+                header.clear();
+                header.putInt(id).putShort((short) index).putShort((short) count).putInt(length).putInt(offset);
+                header.flip();
+                bucket.acquire(1);
+                channel.write(gather);
+                fragments++;
+            }
+        } finally {
+            gather[1] = null;
+        }
+        message.position(end);
+        messages++;
+        return id;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        DirectBuffers.unmap(header);
+    }
+}
@@ -0,0 +1,48 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 把字节流切分成一条一条的消息（帧）
+ * 实现不能保存状态，同一个实例会被多个连接共用
+ */
+public interface FrameDecoder {
+    /**
+     * 从 in 的 position 开始解出一个完整的帧
+     *
+     * @param in 读模式的缓冲区
+     * @return 帧的视图（不复制），in 的 position 移到这一帧之后；数据不完整时返回 null，in 不变
+     * @throws IOException 帧超过最大长度等无法恢复的错误，调用方应关闭连接
+     */
+    ByteBuffer decode(ByteBuffer in) throws IOException;
+
+    /**
+     * 数据分多次到达、每次都从头调用时用：in 开头的 checked 个字节在上一次调用中已经检查过（那次返回了 null），
+     * 实现可以从这里接着找，不用每次从头找（例如分隔符，否则一行分很多次到达时是 O(n²) 的）。默认忽略 checked
+     *
+     * @param checked 上一次返回 null 时 in 的剩余字节数，解出帧之后为 0
+     */
+    default ByteBuffer decode(ByteBuffer in, int checked) throws IOException {
+        return decode(in);
+    }
+
+    /**
+     * 从 CompositeByteBuf 的读位置开始解出一个完整的帧，连接累积了多次读到的数据时调用
+     * 默认把 in 合并成一个连续的缓冲区（复制）后按 decode(ByteBuffer, int) 解，实现可以直接在块上解，不合并
+     *
+     * @param checked 同 decode(ByteBuffer, int)
+     * @return 帧的切片（不复制），用完后调用 release()，in 的读位置移到这一帧之后；数据不完整时返回 null，in 不变
+     */
+    default CompositeByteBuf decode(CompositeByteBuf in, int checked) throws IOException {
+        ByteBuffer view = in.nioBuffer();
+        int start = view.position();
+        ByteBuffer frame = decode(view, checked);
+        if (frame == null) {
+            return null;
+        }
+        CompositeByteBuf slice = in.slice(frame.position() - start, frame.remaining());
+        in.skipBytes(view.position() - start);
+        return slice;
+    }
+}
@@ -0,0 +1,147 @@
+package com.nianzuochen.nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 对数-线性分桶的直方图（HdrHistogram 的做法），记录延迟等非负的 long 值
+ *
+ * 一、小于 64 的值每个值一个桶；之后每个 2 的幂区间 [2^k, 2^(k+1)) 分成 32 个等宽的桶，
+ *      桶宽是区间起点的 1/32，所以任何值的相对误差不超过 1/32，而整个 long 范围只需要 1900 个桶左右。
+ *      记录一个值只是一次 numberOfLeadingZeros、一次移位和一次数组加一，没有分配、没有锁。
+ *
+ * 二、只能有一个线程记录（事件循环线程），计数用 lazySet 写，其他线程随时可以读，
+ *      读到的是某个时刻附近的值，不保证各个桶之间完全一致，用于监控足够了。
+ *      多个线程记录时每个线程一个直方图，读的时候 add() 到一起。
+ *
+ * 三、valueAtPercentile() 返回所在桶的上界，和 HdrHistogram 一样偏保守
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // 值所在的桶
+    static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // 桶的上界（包含）
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long m = index - (long) shift * HALF;
+        return ((m + 1) << shift) - 1;
+    }
+
+    /**
+     * 记录一个值，负数当作 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int i = index(value);
+        counts.lazySet(i, counts.get(i) + 1);
+        count.lazySet(count.get() + 1);
+        sum.lazySet(sum.get() + value);
+        if (value > max.get()) {
+            max.lazySet(value);
+        }
+    }
+
+    /**
+     * 按固定间隔发出的请求被卡住时，卡住期间本该发出的请求都没有发出，也就没有被记录（coordinated omission）。
+     * 补上这些请求：它们的延迟依次是 value - interval、value - 2 * interval ...
+     *
+     * @param expectedInterval 期望的发送间隔，小于等于 0 时不补
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile 0 到 100
+     * @return 至少 percentile% 的值不超过的值，没有记录时返回 0
+     */
+    public long valueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 把 other 的计数加到这个直方图中，只能在记录这个直方图的线程中调用；
+     * other 正在被记录时加上的是某个时刻附近的值
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.lazySet(i, counts.get(i) + c);
+            }
+        }
+        count.lazySet(count.get() + other.count.get());
+        sum.lazySet(sum.get() + other.sum.get());
+        if (other.max.get() > max.get()) {
+            max.lazySet(other.max.get());
+        }
+    }
+
+    // 复制当前的计数
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.lazySet(i, 0);
+        }
+        count.lazySet(0);
+        sum.lazySet(0);
+        max.lazySet(0);
+    }
+}
@@ -0,0 +1,64 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 长度前缀的帧：4 字节长度（大端）+ 内容，解出的帧只包含内容
+ */
+public class LengthFieldFrameDecoder implements FrameDecoder {
+    public static final int LENGTH_FIELD_SIZE = 4;
+
+    private final int maxFrameLength;
+
+    public LengthFieldFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer in) throws IOException {
+        if (in.remaining() < LENGTH_FIELD_SIZE) {
+            return null;
+        }
+        int position = in.position();
+        int length = in.getInt(position);
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("frame length " + length + " exceeds " + maxFrameLength);
+        }
+        if (in.remaining() < LENGTH_FIELD_SIZE + length) {
+            return null;
+        }
+
+        ByteBuffer frame = in.duplicate();
+        frame.position(position + LENGTH_FIELD_SIZE).limit(position + LENGTH_FIELD_SIZE + length);
+        in.position(position + LENGTH_FIELD_SIZE + length);
+        return frame;
+    }
+
+    // 长度可以跨块，知道长度后让整个帧落在一个块中；每次只读开头的长度，用不到 checked
+    @Override
+    public CompositeByteBuf decode(CompositeByteBuf in, int checked) throws IOException {
+        if (in.readableBytes() < LENGTH_FIELD_SIZE) {
+            return null;
+        }
+        int length = in.getInt(0);
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("frame length " + length + " exceeds " + maxFrameLength);
+        }
+        if (in.readableBytes() < LENGTH_FIELD_SIZE + length) {
+            // 后面的数据读到同一个块中，到齐后整个帧不用复制
+            in.ensureContiguous(LENGTH_FIELD_SIZE + length);
+            return null;
+        }
+        in.skipBytes(LENGTH_FIELD_SIZE);
+        return in.readSlice(length);
+    }
+
+    /**
+     * 编码：在 out 中写入长度和内容
+     */
+    public static void encode(ByteBuffer message, ByteBuffer out) {
+        out.putInt(message.remaining());
+        out.put(message);
+    }
+}
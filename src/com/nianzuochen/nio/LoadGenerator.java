@@ -0,0 +1,368 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 本机回环的压测工具，代替在 Scanner(System.in) 中手动输入
+ *
+ * 一、TCP：connections 个连接发送长度前缀的帧（LengthFieldFrameDecoder 的格式），服务端原样返回，
+ *      帧的前 8 字节是发送时间，收到回复时用现在的时间减去它就是延迟，不用在客户端记录每个请求。
+ *      CLOSED_LOOP  每个连接发一个等一个回复，rate 为 0 时尽快发，否则按 rate 的节奏发
+ *      OPEN_LOOP    每个连接一个发送线程按 rate 的节奏发，不等回复，另一个线程收
+ *
+ * 二、coordinated omission：按节奏发送时，服务端卡住一秒，客户端这一秒也发不出请求，
+ *      只记录了一个慢请求，本该发出的那些请求的等待时间都没有记录，p99 看起来还是很好。
+ *      这里发送时间写的是计划的发送时间（start + i * interval），不是实际的发送时间，
+ *      卡住期间本该发出的请求晚发出多久，就多记录多久的延迟（wrk2 的做法）。
+ *
+ * 三、UDP：每个发送端一个连接的 DatagramChannel，按节奏发送带计划发送时间的数据报，
+ *      接收端（同一个进程中的 UdpIngestor）用 latencyHandler() 记录单向延迟和收到最后一个数据报的时间，
+ *      收到的少于发送的就是丢包；运行时间算到最后一个数据报，等丢失的数据报的时间不算在内。
+ *
+ * 四、延迟记录在每个线程自己的 Histogram 中，结束后合并，报告 p50/p99/p999/max
+ */
+public class LoadGenerator {
+    public enum Mode {
+        CLOSED_LOOP, OPEN_LOOP
+    }
+
+    public static final int TIMESTAMP_SIZE = 8;
+
+    // 等待剩下的时间小于这个值时不再 park，yield 等到时间
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // 发送结束后等待最后的回复（数据报）的时间
+    private static final long DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final int connections;
+    private final double rate;
+    private final int messageSize;
+    private final long durationNanos;
+
+    /**
+     * @param connections 连接（UDP 时是发送端）数
+     * @param rate        所有连接合计每秒发送的消息数，0 表示尽快发送（只能用于 CLOSED_LOOP）
+     * @param messageSize 每条消息的字节数，至少 8（发送时间）
+     */
+    public LoadGenerator(int connections, double rate, int messageSize, long durationMillis) {
+        if (connections <= 0 || rate < 0 || messageSize < TIMESTAMP_SIZE || durationMillis <= 0) {
+            throw new IllegalArgumentException("connections: " + connections + ", rate: " + rate
+                    + ", messageSize: " + messageSize + ", durationMillis: " + durationMillis);
+        }
+        this.connections = connections;
+        this.rate = rate;
+        this.messageSize = messageSize;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    }
+
+    // 每个连接的发送间隔，0 表示不限速
+    private long interval() {
+        return rate == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate);
+    }
+
+    /**
+     * 压测一个回显帧的 TCP 服务端
+     */
+    public Result runTcp(final SocketAddress address, final Mode mode) throws IOException, InterruptedException {
+        if (mode == Mode.OPEN_LOOP && rate == 0) {
+            throw new IllegalArgumentException("open loop needs a rate");
+        }
+        final SocketChannel[] channels = new SocketChannel[connections];
+        final Histogram[] histograms = new Histogram[connections];
+        // 每个连接收到最后一个回复的时间（没有收到时为 0），线程退出前写，join 之后读
+        // 不能用线程退出的时间：丢了回复的连接要等到排空超时、通道被关闭才退出，吞吐量会被算低
+        final long[] finished = new long[connections];
+        final AtomicLong sent = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        try {
+            for (int i = 0; i < connections; i++) {
+                channels[i] = SocketChannel.open(address);
+                channels[i].socket().setTcpNoDelay(true);
+                histograms[i] = new Histogram();
+            }
+            start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+            final long end = start + durationNanos;
+            // 各个连接错开发送，合起来是均匀的
+            final long interval = interval();
+            final long stagger = interval / connections;
+            for (int i = 0; i < connections; i++) {
+                final int id = i;
+                final long first = start + i * stagger;
+                if (mode == Mode.CLOSED_LOOP) {
+                    threads.add(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            finished[id] = closedLoop(channels[id], histograms[id], first, end, sent);
+                        }
+                    }, "load-" + i));
+                } else {
+                    // 发送的时间表是固定的，接收线程事先知道要收多少个回复
+                    final long messages = (end - first + interval - 1) / interval;
+                    threads.add(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            openLoopSend(channels[id], first, messages, sent);
+                        }
+                    }, "load-send-" + i));
+                    threads.add(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            finished[id] = openLoopReceive(channels[id], histograms[id], messages);
+                        }
+                    }, "load-receive-" + i));
+                }
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            long deadline = end + DRAIN_NANOS;
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } finally {
+            // 没等到的回复就不等了，关闭通道让还在等的线程退出
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        long last = start;
+        for (long time : finished) {
+            last = Math.max(last, time);
+        }
+        return new Result("tcp " + mode + " " + connections + " x " + describeRate(), sent.get(),
+                merge(histograms), last - start);
+    }
+
+    // 返回收到最后一个回复的时间，没有收到时为 0
+    private long closedLoop(SocketChannel channel, Histogram histogram, long first, long end, AtomicLong sent) {
+        long interval = interval();
+        long last = 0;
+        ByteBuffer request = newMessage();
+        ByteBuffer response = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + messageSize);
+        try {
+            for (long i = 0; ; i++) {
+                long intended = interval == 0 ? System.nanoTime() : first + i * interval;
+                if (intended >= end) {
+                    break;
+                }
+                waitUntil(intended);
+                request.clear();
+                request.putLong(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE, intended);
+                FileTransferProtocol.writeFully(channel, request);
+                sent.incrementAndGet();
+
+                response.clear();
+                FileTransferProtocol.readFully(channel, response);
+                last = System.nanoTime();
+                histogram.record(last - response.getLong(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE));
+            }
+        } catch (IOException ex) {
+            // 通道被关闭
+        }
+        return last;
+    }
+
+    private void openLoopSend(SocketChannel channel, long first, long messages, AtomicLong sent) {
+        long interval = interval();
+        ByteBuffer request = newMessage();
+        try {
+            for (long i = 0; i < messages; i++) {
+                long intended = first + i * interval;
+                waitUntil(intended);
+                request.clear();
+                request.putLong(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE, intended);
+                FileTransferProtocol.writeFully(channel, request);
+                sent.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            // 通道被关闭
+        }
+    }
+
+    // 返回收到最后一个回复的时间，没有收到时为 0
+    private long openLoopReceive(SocketChannel channel, Histogram histogram, long messages) {
+        ByteBuffer response = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + messageSize);
+        long last = 0;
+        try {
+            for (long i = 0; i < messages; i++) {
+                response.clear();
+                FileTransferProtocol.readFully(channel, response);
+                last = System.nanoTime();
+                histogram.record(last - response.getLong(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE));
+            }
+        } catch (IOException ex) {
+            // 通道被关闭，剩下的回复丢失
+        }
+        return last;
+    }
+
+    /**
+     * 向 target 发送数据报，接收端用 latencyHandler(received, lastReceived) 记录，结束后根据 received 统计
+     *
+     * @param received     接收端记录延迟的直方图，只能有一个线程记录（UdpIngestor 只用一个 worker）
+     * @param lastReceived 接收端收到最后一个数据报的时间（System.nanoTime()）
+     */
+    public Result runUdp(final SocketAddress target, Histogram received, AtomicLong lastReceived)
+            throws IOException, InterruptedException {
+        if (rate == 0) {
+            throw new IllegalArgumentException("udp needs a rate");
+        }
+        final AtomicLong sent = new AtomicLong();
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        final long end = start + durationNanos;
+        final long interval = interval();
+        final long stagger = interval / connections;
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            final long first = start + i * stagger;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer datagram = ByteBuffer.allocate(messageSize);
+                    try {
+                        DatagramChannel channel = DatagramChannel.open();
+                        try {
+                            channel.connect(target);
+                            for (long j = 0; ; j++) {
+                                long intended = first + j * interval;
+                                if (intended >= end) {
+                                    break;
+                                }
+                                waitUntil(intended);
+                                datagram.clear();
+                                datagram.putLong(0, intended);
+                                channel.write(datagram);
+                                sent.incrementAndGet();
+                            }
+                        } finally {
+                            channel.close();
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }, "load-udp-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 等最后的数据报被处理
+        long deadline = System.nanoTime() + DRAIN_NANOS;
+        while (received.getCount() < sent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // 有丢包时上面会等满 DRAIN_NANOS，运行时间只算到收到最后一个数据报
+        long last = Math.max(start, lastReceived.get());
+        return new Result("udp " + connections + " x " + describeRate(), sent.get(), received.copy(), last - start);
+    }
+
+    /**
+     * 接收端记录单向延迟和收到最后一个数据报的时间，数据报的前 8 字节是计划的发送时间，发送端和接收端必须在同一个进程中
+     */
+    public static UdpIngestor.DatagramHandler latencyHandler(final Histogram histogram, final AtomicLong lastReceived) {
+        return new UdpIngestor.DatagramHandler() {
+            @Override
+            public void onDatagram(SocketAddress sender, ByteBuffer datagram) {
+                if (datagram.remaining() >= TIMESTAMP_SIZE) {
+                    long now = System.nanoTime();
+                    histogram.record(now - datagram.getLong(datagram.position()));
+                    lastReceived.lazySet(now);
+                }
+            }
+        };
+    }
+
+    // 长度前缀 + 发送时间 + 填充
+    private ByteBuffer newMessage() {
+        ByteBuffer message = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + messageSize);
+        message.putInt(0, messageSize);
+        return message;
+    }
+
+    private String describeRate() {
+        return rate == 0 ? "max rate" : String.format("%.0f/s", rate);
+    }
+
+    private static Histogram merge(Histogram[] histograms) {
+        Histogram merged = new Histogram();
+        for (Histogram histogram : histograms) {
+            merged.add(histogram);
+        }
+        return merged;
+    }
+
+    // 等到 deadline：时间长时 park，剩下不到 SPIN_NANOS 时 yield
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    public static class Result {
+        private final String name;
+        private final long sent;
+        private final Histogram latency;
+        private final long elapsedNanos;
+
+        Result(String name, long sent, Histogram latency, long elapsedNanos) {
+            this.name = name;
+            this.sent = sent;
+            this.latency = latency;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        // 收到回复（数据报）的数量
+        public long getReceived() {
+            return latency.getCount();
+        }
+
+        public long getLost() {
+            return Math.max(0, sent - latency.getCount());
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        // 每秒收到的回复数
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : latency.getCount() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-36s %10d sent %10d received %8d lost %12.0f msg/s   p50 %8.1f  p99 %8.1f  p999 %8.1f  max %8.1f us",
+                    name, sent, getReceived(), getLost(), getThroughput(),
+                    latency.valueAtPercentile(50) / 1000.0, latency.valueAtPercentile(99) / 1000.0,
+                    latency.valueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+        }
+    }
+}
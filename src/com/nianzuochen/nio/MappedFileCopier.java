@@ -0,0 +1,108 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 分段内存映射复制文件
+ *
+ * 一、TestChannel.test2 的问题
+ *      1. map() 一次最多只能映射 Integer.MAX_VALUE 个字节，超过 2G 的文件直接报错
+ *      2. 先 get() 到堆上的 byte[] 再 put()，堆上多了一份和文件一样大的拷贝
+ *
+ * 二、做法
+ *      按固定大小的窗口依次映射源文件和目标文件，映射缓冲区之间直接 put()（直接缓冲区之间的批量复制，不经过堆），
+ *      每个窗口复制完后立即 unmap，常驻内存最多是两个窗口的大小。
+ */
+public class MappedFileCopier {
+    // 默认窗口 64M
+    public static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final long windowSize;
+    // 每个窗口复制完后是否 force() 刷盘，默认交给操作系统回写
+    private final boolean forceEachWindow;
+
+    public MappedFileCopier() {
+        this(DEFAULT_WINDOW_SIZE, false);
+    }
+
+    public MappedFileCopier(long windowSize, boolean forceEachWindow) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("windowSize: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.forceEachWindow = forceEachWindow;
+    }
+
+    public long getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * 复制整个文件，目标文件存在则覆盖
+     *
+     * @return 复制的字节数
+     */
+    public long copy(Path source, Path target) throws IOException {
+        FileChannel inChannel = null;
+        FileChannel outChannel = null;
+        try {
+            inChannel = FileChannel.open(source, StandardOpenOption.READ);
+            // READ_WRITE 映射要求通道同时可读可写
+            outChannel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            return copy(inChannel, 0, inChannel.size(), outChannel, 0);
+        } finally {
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (outChannel != null) {
+                outChannel.close();
+            }
+        }
+    }
+
+    /**
+     * 把 inChannel 中 [position, position + count) 的数据复制到 outChannel 的 targetPosition 处
+     * outChannel 必须以 READ 和 WRITE 打开，文件长度不够时映射会自动扩展
+     *
+     * @return 复制的字节数，源文件比 position + count 短时只复制到文件末尾
+     */
+    public long copy(FileChannel inChannel, long position, long count,
+                     FileChannel outChannel, long targetPosition) throws IOException {
+        if (position < 0 || count < 0 || targetPosition < 0) {
+            throw new IllegalArgumentException();
+        }
+        long end = Math.min(inChannel.size(), position + count);
+        long copied = 0;
+        while (position + copied < end) {
+            long len = Math.min(windowSize, end - position - copied);
+
+            MappedByteBuffer inWindow = null;
+            MappedByteBuffer outWindow = null;
+            try {
+                inWindow = inChannel.map(FileChannel.MapMode.READ_ONLY, position + copied, len);
+                outWindow = outChannel.map(FileChannel.MapMode.READ_WRITE, targetPosition + copied, len);
+                // 映射缓冲区之间直接复制
+                outWindow.put(inWindow);
+                if (forceEachWindow) {
+                    outWindow.force();
+                }
+            } finally {
+                // 复制完立即解除映射，不等 GC
+                DirectBuffers.unmap(inWindow);
+                DirectBuffers.unmap(outWindow);
+            }
+            copied += len;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,537 @@
+package com.nianzuochen.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 大文本文件（日志）的行索引：内存映射 + 并行扫描
+ *
+ * 一、TestChannel.test4 的问题
+ *      固定大小的缓冲区顺序读，一行可能被切在两个缓冲区之间，要自己拼接；
+ *      只能从头往后读，想看第 N 行必须先读完前面 N - 1 行
+ *
+ * 二、建索引
+ *      1. 按 chunkSize 把文件切成若干段，每个切分点向后挪到下一个换行符之后，每段都由完整的行组成，
+ *         各段在 ForkJoinPool 上并行扫描，每段单独映射、扫完立即 unmap
+ *      2. 找换行符一次读 8 个字节（SWAR，把一个 long 当 8 个字节用）：和 0x0A0A...0A 异或后等于 '\n' 的字节变成 0，
+ *         再用字节之间不会进位的加法找出所有为 0 的字节，8 个字节只要几条指令、没有逐字节的分支
+ *      3. 各段的行首位置拼成一个 long[]，第 i 行是 [starts[i], starts[i + 1])，取任意一行都是 O(1)，每行只占 8 个字节
+ *
+ * 三、读取
+ *      建好索引后整个文件按 1G 的窗口映射，相邻窗口多映射最长一行的长度，每一行都完整地落在某个窗口里，
+ *      line() 返回映射缓冲区的视图，不复制；forEachLine() / grep() 按段并行遍历所有行
+ *
+ * 四、行尾的 "\n" 或 "\r\n" 不算在行内容中，文件最后一行没有换行符也算一行；
+ *      索引建好后文件不能再被修改，close() 之后不能再读取
+ *
+ * 五、close() 只关闭通道，不解除窗口的映射：line() 返回的视图和正在进行的 forEachLine() / grep() 可能还在访问映射，
+ *      解除映射后再访问会让 JVM 崩溃（SIGSEGV）。映射在索引和所有视图都被垃圾回收后才解除，
+ *      所以 close() 之前返回的视图之后仍然可以读（和 SegmentLog 一样）
+ */
+public class MappedLineIndex implements Closeable {
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    // 每段至少 1M，再小的话映射和调度的开销比扫描还大
+    private static final long MIN_CHUNK_SIZE = 1024L * 1024;
+    private static final int DEFAULT_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    public interface LineVisitor {
+        /**
+         * 可能在多个线程中同时调用，同一段中的行按顺序调用
+         *
+         * @param line    行号，从 0 开始
+         * @param content 只读，行内容在 position 到 limit 之间（不含行尾），只在调用期间有效
+         */
+        void visit(long line, ByteBuffer content);
+    }
+
+    private final Path file;
+    private final ForkJoinPool pool;
+    private final FileChannel channel;
+    private final long size;
+    // 第 i 行从 starts[i] 开始，最后一个元素是文件大小
+    private final long[] starts;
+    // 第 k 段的第一行，最后一个元素是行数
+    private final int[] rangeFirstLine;
+    // 含行尾
+    private final long maxLineLength;
+    private final int windowSize;
+    private final MappedByteBuffer[] windows;
+    private volatile boolean closed;
+
+    public MappedLineIndex(Path file) throws IOException {
+        this(file, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize 每段的最大字节数；文件较小时按线程数切得更细一些，让每个线程都有活干
+     */
+    public MappedLineIndex(Path file, ForkJoinPool pool, long chunkSize) throws IOException {
+        this(file, pool, chunkSize, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedLineIndex(Path file, ForkJoinPool pool, long chunkSize, int windowSize) throws IOException {
+        if (chunkSize <= 0 || windowSize < 8) {
+            throw new IllegalArgumentException();
+        }
+        this.file = file;
+        this.pool = pool;
+        this.windowSize = windowSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        boolean built = false;
+        try {
+            size = channel.size();
+            long[] bounds = split(chunkSize);
+            LongList[] lines = new LongList[bounds.length - 1];
+            try {
+                pool.invoke(new IndexTask(bounds, lines, 0, lines.length));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            long total = 0;
+            for (LongList list : lines) {
+                total += list.size();
+            }
+            if (total >= Integer.MAX_VALUE) {
+                throw new IOException("too many lines: " + total);
+            }
+            starts = new long[(int) total + 1];
+            rangeFirstLine = new int[lines.length + 1];
+            int count = 0;
+            for (int k = 0; k < lines.length; k++) {
+                rangeFirstLine[k] = count;
+                lines[k].copyTo(starts, count);
+                count += lines[k].size();
+            }
+            rangeFirstLine[lines.length] = count;
+            starts[count] = size;
+
+            long max = 0;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, starts[i + 1] - starts[i]);
+            }
+            maxLineLength = max;
+            windows = mapWindows();
+            built = true;
+        } finally {
+            if (!built) {
+                channel.close();
+            }
+        }
+    }
+
+    // 切分点：每段 chunk 个字节左右，再向后挪到下一行的开头
+    private long[] split(long chunkSize) throws IOException {
+        long chunk = Math.min(chunkSize, Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4L)));
+        LongList bounds = new LongList(16);
+        bounds.add(0);
+        long position = 0;
+        while (size - position > chunk) {
+            position = nextLineStart(position + chunk);
+            bounds.add(position);
+        }
+        if (position < size) {
+            bounds.add(size);
+        }
+        return bounds.toArray();
+    }
+
+    // position 或者它之后的第一个行首，即第一个 q >= position，q 是文件末尾或者 q - 1 是 '\n'
+    private long nextLineStart(long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        long pos = position - 1;
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    // 扫描 [start, end)，返回其中每一行的开头
+    private LongList scanRange(long start, long end) throws IOException {
+        LongList result = new LongList(1024);
+        result.add(start);
+        for (long position = start; position < end; position += windowSize) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(windowSize, end - position));
+            try {
+                scan(buf, position, result);
+            } finally {
+                DirectBuffers.unmap(buf);
+            }
+        }
+        // 段的最后一个字节是 '\n'，它后面的一行属于下一段（或者已经是文件末尾）
+        if (result.size() > 1 && result.get(result.size() - 1) == end) {
+            result.removeLast();
+        }
+        return result;
+    }
+
+    // 找出 buf 中所有的 '\n'，把它后面一行的开头（base 为 buf 在文件中的位置）记到 result 中
+    private static void scan(ByteBuffer buf, long base, LongList result) {
+        // 低地址的字节在 long 的低位，numberOfTrailingZeros() 先找到的就是靠前的换行符
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int limit = buf.limit();
+        int i = 0;
+        for (; i <= limit - 8; i += 8) {
+            long x = buf.getLong(i) ^ NEWLINES;
+            // 每个字节的低 7 位加上 0x7F，只要不为 0 最高位就变成 1，而且不会进位到相邻字节；
+            // 再或上原来的最高位，取反后只有为 0 的字节（也就是原来的 '\n'）最高位是 1
+            long found = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+            while (found != 0) {
+                result.add(base + i + (Long.numberOfTrailingZeros(found) >>> 3) + 1);
+                found &= found - 1;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                result.add(base + i + 1);
+            }
+        }
+    }
+
+    // 窗口 k 从 k * windowSize 开始，多映射最长一行的长度，从窗口中开始的行都完整地落在这个窗口里
+    private MappedByteBuffer[] mapWindows() throws IOException {
+        long overlap = Math.min(maxLineLength, Integer.MAX_VALUE - windowSize);
+        MappedByteBuffer[] result = new MappedByteBuffer[(int) ((size + windowSize - 1) / windowSize)];
+        try {
+            for (int k = 0; k < result.length; k++) {
+                long position = (long) k * windowSize;
+                result[k] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, windowSize + overlap));
+            }
+            return result;
+        } catch (IOException ex) {
+            for (MappedByteBuffer window : result) {
+                DirectBuffers.unmap(window);
+            }
+            throw ex;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLineCount() {
+        return starts.length - 1;
+    }
+
+    /**
+     * 第 line 行在文件中的起始位置
+     */
+    public long getLineStart(long line) {
+        checkLine(line);
+        return starts[(int) line];
+    }
+
+    // 含行尾
+    public long getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    // 建索引时切成的段数
+    public int getRangeCount() {
+        return rangeFirstLine.length - 1;
+    }
+
+    /**
+     * 第 line 行的内容（不含行尾），只读；通常是映射缓冲区的视图，超过窗口重叠部分的长行会复制到堆上
+     */
+    public ByteBuffer line(long line) {
+        checkLine(line);
+        int i = (int) line;
+        long start = starts[i];
+        long end = starts[i + 1];
+        int k = (int) (start / windowSize);
+        long windowStart = (long) k * windowSize;
+        if (end - windowStart <= windows[k].capacity()) {
+            ByteBuffer view = windows[k].duplicate();
+            setLine(view, (int) (start - windowStart), (int) (end - windowStart));
+            return view.slice();
+        }
+
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IllegalStateException("line " + line + " is longer than 2G");
+        }
+        ByteBuffer copy = ByteBuffer.allocate((int) (end - start));
+        try {
+            while (copy.hasRemaining()) {
+                if (channel.read(copy, start + copy.position()) < 0) {
+                    throw new IOException(file + " was truncated");
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        setLine(copy, 0, copy.limit());
+        return copy.slice().asReadOnlyBuffer();
+    }
+
+    public String readLine(long line) {
+        return readLine(line, StandardCharsets.UTF_8);
+    }
+
+    public String readLine(long line, Charset charset) {
+        return charset.decode(line(line)).toString();
+    }
+
+    /**
+     * 在建索引的线程池中按段并行遍历所有的行，全部遍历完才返回
+     */
+    public void forEachLine(LineVisitor visitor) {
+        LineVisitor[] visitors = new LineVisitor[getRangeCount()];
+        Arrays.fill(visitors, visitor);
+        visit(visitors);
+    }
+
+    /**
+     * 并行查找包含 pattern 的行
+     *
+     * @return 按从小到大排好的行号
+     */
+    public long[] grep(final byte[] pattern) {
+        LineVisitor[] visitors = new LineVisitor[getRangeCount()];
+        final LongList[] matches = new LongList[visitors.length];
+        for (int k = 0; k < visitors.length; k++) {
+            final LongList found = matches[k] = new LongList(16);
+            visitors[k] = new LineVisitor() {
+                public void visit(long line, ByteBuffer content) {
+                    if (contains(content, pattern)) {
+                        found.add(line);
+                    }
+                }
+            };
+        }
+        visit(visitors);
+
+        int total = 0;
+        for (LongList list : matches) {
+            total += list.size();
+        }
+        long[] result = new long[total];
+        int count = 0;
+        for (LongList list : matches) {
+            list.copyTo(result, count);
+            count += list.size();
+        }
+        return result;
+    }
+
+    private void visit(LineVisitor[] visitors) {
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        if (visitors.length > 0) {
+            pool.invoke(new VisitTask(visitors, 0, visitors.length));
+        }
+    }
+
+    // 把 [start, end) 去掉行尾后设置为 buf 的 position 到 limit
+    private static void setLine(ByteBuffer buf, int start, int end) {
+        // 复用的视图还留着上一行的 limit
+        buf.clear();
+        if (end > start && buf.get(end - 1) == '\n') {
+            end--;
+            if (end > start && buf.get(end - 1) == '\r') {
+                end--;
+            }
+        }
+        buf.limit(end);
+        buf.position(start);
+    }
+
+    private static boolean contains(ByteBuffer content, byte[] pattern) {
+        if (pattern.length == 0) {
+            return true;
+        }
+        byte first = pattern[0];
+        int last = content.limit() - pattern.length;
+        outer:
+        for (int i = content.position(); i <= last; i++) {
+            if (content.get(i) != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (content.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void checkLine(long line) {
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        if (line < 0 || line >= starts.length - 1) {
+            throw new IndexOutOfBoundsException("line: " + line + ", lineCount: " + (starts.length - 1));
+        }
+    }
+
+    /**
+     * 关闭通道，之后不能再开始新的读取；映射留给垃圾回收，见类注释第五条
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedLineIndex[file=" + file + ", size=" + size + ", lines=" + getLineCount()
+                + ", ranges=" + getRangeCount() + ", maxLineLength=" + maxLineLength + "]";
+    }
+
+    // 扫描 [from, to) 这几段
+    private class IndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] bounds;
+        private final LongList[] lines;
+        private final int from;
+        private final int to;
+
+        IndexTask(long[] bounds, LongList[] lines, int from, int to) {
+            this.bounds = bounds;
+            this.lines = lines;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new IndexTask(bounds, lines, from, mid), new IndexTask(bounds, lines, mid, to));
+                return;
+            }
+            for (int k = from; k < to; k++) {
+                try {
+                    lines[k] = scanRange(bounds[k], bounds[k + 1]);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+    }
+
+    // 遍历 [from, to) 这几段中的行，第 k 段的行交给 visitors[k]
+    private class VisitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final LineVisitor[] visitors;
+        private final int from;
+        private final int to;
+
+        VisitTask(LineVisitor[] visitors, int from, int to) {
+            this.visitors = visitors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VisitTask(visitors, from, mid), new VisitTask(visitors, mid, to));
+                return;
+            }
+            for (int k = from; k < to; k++) {
+                visitRange(k, visitors[k]);
+            }
+        }
+
+        // 同一个窗口中的行共用一个视图，不用每行创建缓冲区
+        private void visitRange(int k, LineVisitor visitor) {
+            ByteBuffer view = null;
+            int current = -1;
+            for (int i = rangeFirstLine[k]; i < rangeFirstLine[k + 1]; i++) {
+                long start = starts[i];
+                int w = (int) (start / windowSize);
+                long windowStart = (long) w * windowSize;
+                if (starts[i + 1] - windowStart > windows[w].capacity()) {
+                    visitor.visit(i, line(i));
+                    continue;
+                }
+                if (w != current) {
+                    view = windows[w].asReadOnlyBuffer();
+                    current = w;
+                }
+                setLine(view, (int) (start - windowStart), (int) (starts[i + 1] - windowStart));
+                visitor.visit(i, view);
+            }
+        }
+    }
+
+    // 只存 long 的变长数组，避免装箱
+    private static class LongList {
+        private long[] values;
+        private int size;
+
+        LongList(int capacity) {
+            values = new long[capacity];
+        }
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void copyTo(long[] target, int offset) {
+            System.arraycopy(values, 0, target, offset, size);
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
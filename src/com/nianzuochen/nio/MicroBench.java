@@ -0,0 +1,169 @@
+package com.nianzuochen.nio;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 简单的微基准测试工具，替代 System.currentTimeMillis() 只测一次的做法
+ *
+ * 一、每个测试先预热 warmups 轮，再测量 iterations 轮，输出平均值和标准差
+ * 二、吞吐量：body 返回每轮处理的字节数，换算成 MB/s；返回 0 时只输出每轮耗时
+ * 三、分配：当前线程在堆上分配的字节数（相当于 JMH 的 -prof gc 中的 gc.alloc.rate.norm），
+ *      以及测量期间的 GC 次数和耗时。直接缓冲区分配的是本地内存，不计入堆分配
+ */
+public class MicroBench {
+    public interface Body {
+        // 执行一轮，返回处理的字节数
+        long run() throws Exception;
+    }
+
+    // 防止 JIT 把没有使用的结果优化掉
+    public static volatile long blackhole;
+
+    private final int warmups;
+    private final int iterations;
+
+    public MicroBench(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    public static void printHeader() {
+        System.out.println(String.format("%-40s %12s %10s %12s %14s %8s %8s",
+                "benchmark", "avg(us)", "stdev%", "MB/s", "alloc(B/op)", "gc", "gc(ms)"));
+    }
+
+    public Result run(String name, Body body) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            blackhole += body.run();
+        }
+
+        long[] nanos = new long[iterations];
+        long bytes = 0;
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocated = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            bytes += body.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        allocated = allocatedBytes() - allocated;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+
+        Result result = new Result(name, nanos, bytes, allocated < 0 ? -1 : allocated / iterations, gcCount, gcTime);
+        System.out.println(result);
+        return result;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * 解析 "4k"、"64m"、"4g" 这样的大小
+     */
+    public static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        char last = s.charAt(s.length() - 1);
+        if (last == 'k') {
+            unit = 1024L;
+        } else if (last == 'm') {
+            unit = 1024L * 1024;
+        } else if (last == 'g') {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    public static String formatSize(long size) {
+        if (size >= 1024L * 1024 * 1024 && size % (1024L * 1024 * 1024) == 0) {
+            return size / (1024L * 1024 * 1024) + "G";
+        }
+        if (size >= 1024L * 1024 && size % (1024L * 1024) == 0) {
+            return size / (1024L * 1024) + "M";
+        }
+        if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + "K";
+        }
+        return String.valueOf(size);
+    }
+
+    public static class Result {
+        private final String name;
+        private final double avgNanos;
+        private final double stdevNanos;
+        private final double throughput;
+        private final long allocatedPerOp;
+        private final long gcCount;
+        private final long gcTime;
+
+        Result(String name, long[] nanos, long bytes, long allocatedPerOp, long gcCount, long gcTime) {
+            this.name = name;
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            this.avgNanos = (double) total / nanos.length;
+            double variance = 0;
+            for (long n : nanos) {
+                variance += (n - avgNanos) * (n - avgNanos);
+            }
+            this.stdevNanos = Math.sqrt(variance / nanos.length);
+            this.throughput = bytes == 0 ? 0 : bytes / (1024.0 * 1024.0) / (total / 1e9);
+            this.allocatedPerOp = allocatedPerOp;
+            this.gcCount = gcCount;
+            this.gcTime = gcTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getAvgNanos() {
+            return avgNanos;
+        }
+
+        // MB/s
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public long getAllocatedPerOp() {
+            return allocatedPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %12.1f %10.1f %12.1f %14d %8d %8d",
+                    name, avgNanos / 1000, avgNanos == 0 ? 0 : stdevNanos * 100 / avgNanos,
+                    throughput, allocatedPerOp, gcCount, gcTime);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * 多 Reactor 的 TCP 服务端
+ *
+ * 一、TestNonBlockingNIO.server 只有一个选择器、一个线程，接收连接、读数据、处理数据都在一起，多核机器上只能用到一个核。
+ *
+ * 二、这里分成两种线程
+ *      boss：一个选择器，只监听 OP_ACCEPT，接收到的连接交给某一个 worker
+ *      worker：N 个 EventLoop（默认每个 CPU 一个），各自负责一部分连接的读写
+ *
+ * 三、分配策略
+ *      ROUND_ROBIN         轮流分配
+ *      LEAST_CONNECTIONS   分配给当前连接数最少的 worker，连接时长差别很大时更均衡
+ *
+ * 四、boss 和每个 worker 各有一个 EventLoopMetrics，注册在 JMX 中，boss 的统计中有每秒接收的连接数
+ */
+public class MultiReactorServer {
+    public enum Balance {
+        ROUND_ROBIN, LEAST_CONNECTIONS
+    }
+
+    private final SocketAddress address;
+    private final EventLoop[] workers;
+    private final Balance balance;
+    private final EventLoopMetrics bossMetrics = new EventLoopMetrics("boss");
+    private int next;
+
+    private ServerSocketChannel ssChannel;
+    private Selector selector;
+    private Thread boss;
+    private volatile boolean running;
+
+    public MultiReactorServer(int port, ConnectionHandler handler) throws IOException {
+        this(new InetSocketAddress(port), Runtime.getRuntime().availableProcessors(), Balance.ROUND_ROBIN, handler);
+    }
+
+    public MultiReactorServer(SocketAddress address, int workers, Balance balance, ConnectionHandler handler) throws IOException {
+        this(address, workers, balance, handler, null);
+    }
+
+    /**
+     * @param decoder 分帧方式，为 null 时读到多少交给 handler 多少
+     */
+    public MultiReactorServer(SocketAddress address, int workers, Balance balance,
+                              ConnectionHandler handler, FrameDecoder decoder) throws IOException {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers: " + workers);
+        }
+        this.address = address;
+        this.balance = balance;
+        this.workers = new EventLoop[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new EventLoop("worker-" + i, handler, decoder, 16 * 1024);
+        }
+    }
+
+    public void start() throws IOException {
+        // 1. 获取通道，切换成非阻塞模式，绑定连接
+        ssChannel = ServerSocketChannel.open();
+        ssChannel.configureBlocking(false);
+        ssChannel.bind(address, 1024);
+
+        // 2. boss 选择器只监听 接收 事件
+        selector = Selector.open();
+        ssChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        for (EventLoop worker : workers) {
+            worker.start();
+        }
+
+        bossMetrics.register();
+        running = true;
+        boss = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "boss");
+        boss.start();
+    }
+
+    // 实际监听的地址，端口为 0 时由系统分配
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) ssChannel.getLocalAddress();
+    }
+
+    public EventLoop[] getWorkers() {
+        return workers;
+    }
+
+    public EventLoopMetrics getBossMetrics() {
+        return bossMetrics;
+    }
+
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        for (EventLoop worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        if (boss != null) {
+            boss.join();
+        }
+        for (EventLoop worker : workers) {
+            worker.awaitTermination();
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                long selectStart = System.nanoTime();
+                selector.select();
+                long selectEnd = System.nanoTime();
+                int ready = selector.selectedKeys().size();
+                long accepted = 0;
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey sk = it.next();
+                    it.remove();
+                    if (sk.isAcceptable()) {
+                        // 一次就绪可能有多个连接，一直接收到返回 null
+                        SocketChannel sChannel;
+                        while ((sChannel = ssChannel.accept()) != null) {
+                            nextWorker().register(sChannel);
+                            accepted++;
+                        }
+                    }
+                }
+                bossMetrics.addAccepts(accepted);
+                bossMetrics.recordIteration(selectStart, selectEnd, System.nanoTime(), ready);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (ClosedSelectorException ex) {
+            // 已关闭
+        } finally {
+            try {
+                selector.close();
+                ssChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bossMetrics.unregister();
+        }
+    }
+
+    private EventLoop nextWorker() {
+        if (balance == Balance.LEAST_CONNECTIONS) {
+            EventLoop least = workers[0];
+            for (int i = 1; i < workers.length; i++) {
+                if (workers[i].getConnectionCount() < least.getConnectionCount()) {
+                    least = workers[i];
+                }
+            }
+            return least;
+        }
+        EventLoop worker = workers[next];
+        next = (next + 1) % workers.length;
+        return worker;
+    }
+}
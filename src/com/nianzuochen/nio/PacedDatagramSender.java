@@ -0,0 +1,141 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 限速、合并发送的 UDP 发送端
+ *
+ * 一、TestNonBlockingNIO2.send 每次 send(buf, new InetSocketAddress(...))：每次新建一个地址对象，
+ *      没有 connect 的 send() 每次都要检查地址和查找路由。这里在构造时 connect() 一次，之后用 write()。
+ *
+ * 二、多个小消息合并到一个数据报中，每个消息前面是 2 字节的长度：[长度][内容][长度][内容]...，
+ *      数据报最大 MTU（默认 1472 = 1500 - IP 头 20 - UDP 头 8，不会被 IP 分片），放不下下一条消息时发送。
+ *      接收端用 unpack() 拆开。
+ *
+ * 三、用令牌桶按每秒的数据报数限速，突发的发送不会塞满接收端的 socket 接收缓冲区（满了内核直接丢包）。
+ *
+ * 四、不是线程安全的，只能在一个线程中使用
+ */
+public class PacedDatagramSender {
+    public static final int DEFAULT_MTU = 1472;
+    public static final int LENGTH_FIELD_SIZE = 2;
+
+    public interface MessageHandler {
+        /**
+         * @param message 数据报中的一条消息，只在回调期间有效
+         */
+        void onMessage(ByteBuffer message);
+    }
+
+    private final DatagramChannel channel;
+    private final TokenBucket bucket;
+    private final int mtu;
+    // 正在合并的数据报，从池中借用
+    private ByteBuffer datagram;
+    private long messages;
+    private long packets;
+
+    public PacedDatagramSender(SocketAddress target, double packetsPerSecond) throws IOException {
+        this(target, new TokenBucket(packetsPerSecond, Math.max(1, packetsPerSecond / 100)), DEFAULT_MTU);
+    }
+
+    /**
+     * @param bucket 每个数据报一个令牌，可以几个发送端共用一个令牌桶
+     */
+    public PacedDatagramSender(SocketAddress target, TokenBucket bucket, int mtu) throws IOException {
+        if (mtu <= LENGTH_FIELD_SIZE || mtu > 65507) {
+            throw new IllegalArgumentException("mtu: " + mtu);
+        }
+        this.bucket = bucket;
+        this.mtu = mtu;
+        this.channel = DatagramChannel.open();
+        this.channel.connect(target);
+        this.datagram = BufferPool.shared().acquire(mtu);
+    }
+
+    // 一条消息最多多少字节
+    public int getMaxMessageSize() {
+        return Math.min(mtu - LENGTH_FIELD_SIZE, 0xFFFF);
+    }
+
+    /**
+     * 把 message 剩下的内容放进当前的数据报，放不下时先发送当前的数据报
+     */
+    public void send(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        if (length > getMaxMessageSize()) {
+            throw new IllegalArgumentException("message too large: " + length);
+        }
+        if (datagram.remaining() < LENGTH_FIELD_SIZE + length) {
+            flush();
+        }
+        datagram.putShort((short) length);
+        datagram.put(message);
+        messages++;
+    }
+
+    /**
+     * 发送当前的数据报，令牌不够时等待
+     */
+    public void flush() throws IOException {
+        if (datagram.position() == 0) {
+            return;
+        }
+        bucket.acquire(1);
+        datagram.flip();
+        channel.write(datagram);
+        // 池中的缓冲区可能比 mtu 大
+        datagram.clear();
+        datagram.limit(mtu);
+        packets++;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    // 发送剩下的消息，归还缓冲区
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            BufferPool.shared().release(datagram);
+            datagram = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * 拆开一个数据报中的所有消息，不复制
+     *
+     * @return 消息数
+     */
+    public static int unpack(ByteBuffer datagram, MessageHandler handler) throws IOException {
+        ByteBuffer message = datagram.duplicate();
+        int position = datagram.position();
+        int limit = datagram.limit();
+        int count = 0;
+        while (position < limit) {
+            if (limit - position < LENGTH_FIELD_SIZE) {
+                throw new IOException("truncated length at " + position);
+            }
+            int length = datagram.getShort(position) & 0xFFFF;
+            position += LENGTH_FIELD_SIZE;
+            if (limit - position < length) {
+                throw new IOException("truncated message at " + position + ": " + length + " bytes");
+            }
+            message.limit(position + length).position(position);
+            handler.onMessage(message);
+            position += length;
+            count++;
+        }
+        return count;
+    }
+}
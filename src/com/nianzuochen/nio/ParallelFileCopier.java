@@ -0,0 +1,214 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段并行复制文件
+ *
+ * 一、把源文件切成若干段（chunkSize），在 ForkJoinPool 上并行复制，NVMe 这种多队列的盘需要较高的队列深度才能跑满
+ * 二、每段的复制方式
+ *      DIRECT      直接缓冲区 + 按位置读写 read(buf, pos) / write(buf, pos)，多个线程共用同一对通道
+ *      TRANSFER    每段单独打开目标通道并定位，再 transferTo(pos, count, target)
+ * 三、每段失败后从已完成的位置重试，最多 maxRetries 次；每段的进度通过 ProgressListener 通知
+ */
+public class ParallelFileCopier {
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * 某一段有新的进度，可能在多个线程中同时调用
+         *
+         * @param rangeStart  段的起始位置
+         * @param rangeLength 段的长度
+         * @param rangeCopied 段内已复制的字节数
+         * @param totalCopied 整个文件已复制的字节数
+         */
+        void onProgress(long rangeStart, long rangeLength, long rangeCopied, long totalCopied);
+    }
+
+    private final ForkJoinPool pool;
+    private final CopyStrategy strategy;
+    private final long chunkSize;
+    private final int bufferSize;
+    private final int maxRetries;
+
+    public ParallelFileCopier() {
+        this(ForkJoinPool.commonPool(), CopyStrategy.DIRECT, DEFAULT_CHUNK_SIZE, 1024 * 1024, 3);
+    }
+
+    /**
+     * @param strategy 只支持 DIRECT 和 TRANSFER
+     */
+    public ParallelFileCopier(ForkJoinPool pool, CopyStrategy strategy, long chunkSize, int bufferSize, int maxRetries) {
+        if (strategy != CopyStrategy.DIRECT && strategy != CopyStrategy.TRANSFER) {
+            throw new IllegalArgumentException("strategy: " + strategy);
+        }
+        if (chunkSize <= 0 || bufferSize <= 0 || maxRetries < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.pool = pool;
+        this.strategy = strategy;
+        this.chunkSize = chunkSize;
+        this.bufferSize = bufferSize;
+        this.maxRetries = maxRetries;
+    }
+
+    public CopyResult copy(Path source, Path target) throws IOException {
+        return copy(source, target, null);
+    }
+
+    /**
+     * 复制整个文件，目标文件存在则覆盖
+     *
+     * @param listener 可以为 null
+     */
+    public CopyResult copy(Path source, Path target, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        FileChannel inChannel = null;
+        FileChannel outChannel = null;
+        try {
+            inChannel = FileChannel.open(source, StandardOpenOption.READ);
+            outChannel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            long size = inChannel.size();
+            if (outChannel.size() > size) {
+                outChannel.truncate(size);
+            }
+
+            Job job = new Job(target, inChannel, outChannel, listener);
+            try {
+                pool.invoke(new RangeTask(job, 0, size));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            return new CopyResult(strategy, job.total.get(), System.nanoTime() - start);
+        } finally {
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (outChannel != null) {
+                outChannel.close();
+            }
+        }
+    }
+
+    // 一次复制共享的状态
+    private static class Job {
+        final Path target;
+        final FileChannel inChannel;
+        final FileChannel outChannel;
+        final ProgressListener listener;
+        final AtomicLong total = new AtomicLong();
+
+        Job(Path target, FileChannel inChannel, FileChannel outChannel, ProgressListener listener) {
+            this.target = target;
+            this.inChannel = inChannel;
+            this.outChannel = outChannel;
+            this.listener = listener;
+        }
+    }
+
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Job job;
+        private final long start;
+        private final long end;
+        // 本段已完成的字节数，重试时从这里继续
+        private long copied;
+
+        RangeTask(Job job, long start, long end) {
+            this.job = job;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > chunkSize) {
+                // 按 chunkSize 对齐切分，保证每段都是完整的 chunk
+                long chunks = (end - start + chunkSize - 1) / chunkSize;
+                long mid = start + chunks / 2 * chunkSize;
+                invokeAll(new RangeTask(job, start, mid), new RangeTask(job, mid, end));
+                return;
+            }
+
+            int attempts = 0;
+            while (true) {
+                try {
+                    if (strategy == CopyStrategy.TRANSFER) {
+                        transferRange();
+                    } else {
+                        copyRange();
+                    }
+                    return;
+                } catch (IOException ex) {
+                    if (++attempts > maxRetries) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }
+        }
+
+        private void copyRange() throws IOException {
+            int size = (int) Math.min(bufferSize, Math.max(1, end - start));
+            ByteBuffer buf = BufferPool.shared().acquire(size);
+            try {
+                while (start + copied < end) {
+                    buf.clear();
+                    buf.limit((int) Math.min(size, end - start - copied));
+                    int n = job.inChannel.read(buf, start + copied);
+                    if (n < 0) {
+                        // 复制过程中源文件被截短了
+                        return;
+                    }
+                    buf.flip();
+                    long position = start + copied;
+                    while (buf.hasRemaining()) {
+                        position += job.outChannel.write(buf, position);
+                    }
+                    progress(n);
+                }
+            } finally {
+                BufferPool.shared().release(buf);
+            }
+        }
+
+        private void transferRange() throws IOException {
+            // transferTo() 写到目标通道的当前位置，所以每段单独打开一个目标通道
+            FileChannel outChannel = FileChannel.open(job.target, StandardOpenOption.WRITE);
+            try {
+                outChannel.position(start + copied);
+                while (start + copied < end) {
+                    long n = job.inChannel.transferTo(start + copied, end - start - copied, outChannel);
+                    if (n <= 0 && start + copied >= job.inChannel.size()) {
+                        return;
+                    }
+                    progress(n);
+                }
+            } finally {
+                outChannel.close();
+            }
+        }
+
+        private void progress(long n) {
+            copied += n;
+            long total = job.total.addAndGet(n);
+            if (job.listener != null) {
+                job.listener.onProgress(start, end - start, copied, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 多级流水线：解码、处理、编码等每一级一个线程，级与级之间用 Pipe 或 RingByteChannel 连接
+ *
+ * 一、TestNonBlocking3 里说管道的两端可以放在两个线程中，这里就是这样用的：
+ *      每一级从上一级的 source 读，处理后写到下一级的 sink，每一级的循环只在一个线程中运行，
+ *      不用加锁，数据也一直在这个核的缓存中。
+ *
+ * 二、级之间传递的是帧：4 字节长度 + 内容（LengthFieldFrameDecoder 的格式）。
+ *      连接的容量是有限的（Pipe 是内核缓冲区，RingByteChannel 是环形缓冲区的大小），
+ *      下一级处理不过来时上一级的 write() 阻塞，压力一级一级传回到 submit()。
+ *
+ * 三、按批处理：每一级一次 read() 读到所有已经到达的数据，处理其中所有完整的帧，
+ *      输出先放在缓冲区中，处理完这一批再一次 write() 到下一级，每批只有一次读、一次写。
+ *
+ * 四、每一级的统计（StageMetrics）：输入输出的帧数和字节数、批数、处理时间和等待时间。
+ *      处理时间占比接近 100% 的那一级就是瓶颈。
+ *
+ * 五、close() 关闭第一级的输入，每一级处理完剩下的帧后关闭自己的输出，最后一级退出后整个流水线结束
+ *
+ * 六、某一级出错（process() 抛出异常、帧格式不对）时这一级退出，上游的数据都会被丢弃。
+ *      记下第一个错误，之后的 submit() / flush() / close() 和 awaitTermination() 都抛出它，调用者能知道丢了帧
+ */
+public class Pipeline {
+    public interface Stage {
+        /**
+         * 在这一级的线程中调用
+         *
+         * @param frame 一帧的内容，只在回调期间有效
+         * @param out   输出到下一级，可以输出 0 到多帧
+         */
+        void process(ByteBuffer frame, Emitter out) throws IOException;
+    }
+
+    public interface Emitter {
+        void emit(ByteBuffer frame) throws IOException;
+    }
+
+    // 级与级之间的连接
+    public enum LinkType {
+        // Pipe：每次读写都是系统调用，可以注册到选择器上
+        PIPE,
+        // RingByteChannel：进程内的环形缓冲区，不进内核
+        RING
+    }
+
+    public static final int DEFAULT_LINK_CAPACITY = 256 * 1024;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final LinkType linkType;
+    private final int linkCapacity;
+    private final WaitStrategy waitStrategy;
+    private final int maxFrameLength;
+    private final int bufferSize;
+    private final List<String> names = new ArrayList<String>();
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+    private Emitter output;
+    // 第一个出错的级的异常，后面的级因为它而失败的不再记录
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+    private WritableByteChannel input;
+    private ByteBuffer inputBuffer;
+    private Thread[] threads;
+
+    public Pipeline(LinkType linkType) {
+        this(linkType, DEFAULT_LINK_CAPACITY, WaitStrategy.PARK, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param linkCapacity RING 时环形缓冲区的大小（2 的幂），PIPE 时忽略
+     * @param waitStrategy RING 时没有数据、没有空间时的等待方式，PIPE 时忽略
+     */
+    public Pipeline(LinkType linkType, int linkCapacity, WaitStrategy waitStrategy, int maxFrameLength) {
+        this.linkType = linkType;
+        this.linkCapacity = linkCapacity;
+        this.waitStrategy = waitStrategy;
+        this.maxFrameLength = maxFrameLength;
+        this.bufferSize = Math.max(64 * 1024, LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + maxFrameLength);
+    }
+
+    /**
+     * 在最后加一级，start() 之前调用
+     */
+    public Pipeline addStage(String name, Stage stage) {
+        if (threads != null) {
+            throw new IllegalStateException("already started");
+        }
+        names.add(name);
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * 最后一级的输出，在最后一级的线程中调用；不设置时丢弃
+     */
+    public Pipeline setOutput(Emitter output) {
+        this.output = output;
+        return this;
+    }
+
+    public void start() throws IOException {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("no stages");
+        }
+        int count = stages.size();
+        WritableByteChannel[] sinks = new WritableByteChannel[count];
+        ReadableByteChannel[] sources = new ReadableByteChannel[count];
+        for (int i = 0; i < count; i++) {
+            if (linkType == LinkType.PIPE) {
+                Pipe pipe = Pipe.open();
+                sinks[i] = pipe.sink();
+                sources[i] = pipe.source();
+            } else {
+                RingByteChannel ring = new RingByteChannel(linkCapacity, false, waitStrategy);
+                sinks[i] = ring;
+                sources[i] = ring;
+            }
+        }
+
+        input = sinks[0];
+        inputBuffer = BufferPool.shared().acquire(bufferSize);
+        threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final StageMetrics stageMetrics = new StageMetrics(names.get(i));
+            metrics.add(stageMetrics);
+            final Stage stage = stages.get(i);
+            final ReadableByteChannel source = sources[i];
+            final WritableByteChannel sink = i + 1 < count ? sinks[i + 1] : null;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runStage(stage, stageMetrics, source, sink);
+                }
+            }, "pipeline-" + names.get(i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * 把一帧放进第一级的输入，攒够一个缓冲区才写，flush() 立即写
+     */
+    public synchronized void submit(ByteBuffer frame) throws IOException {
+        checkFailure();
+        int length = frame.remaining();
+        if (length > maxFrameLength) {
+            throw new IOException("frame length " + length + " exceeds " + maxFrameLength);
+        }
+        if (inputBuffer.remaining() < LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + length) {
+            flush();
+        }
+        LengthFieldFrameDecoder.encode(frame, inputBuffer);
+    }
+
+    public synchronized void flush() throws IOException {
+        checkFailure();
+        inputBuffer.flip();
+        try {
+            while (inputBuffer.hasRemaining()) {
+                input.write(inputBuffer);
+            }
+        } catch (IOException ex) {
+            // 第一级出错退出后输入已经关闭，抛出真正的原因
+            checkFailure();
+            throw ex;
+        }
+        inputBuffer.clear();
+    }
+
+    /**
+     * 写完剩下的输入，关闭第一级的输入，各级处理完后依次退出
+     *
+     * @throws IOException 已经有一级出错
+     */
+    public synchronized void close() throws IOException {
+        if (inputBuffer == null) {
+            checkFailure();
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BufferPool.shared().release(inputBuffer);
+            inputBuffer = null;
+            input.close();
+        }
+    }
+
+    /**
+     * 等待所有级退出
+     *
+     * @throws IOException 有一级出错，有帧没有处理完
+     */
+    public void awaitTermination() throws InterruptedException, IOException {
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        checkFailure();
+    }
+
+    // 第一个出错的级的异常，没有出错时为 null
+    public IOException getFailure() {
+        return failure.get();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException ex = failure.get();
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    public List<StageMetrics> getMetrics() {
+        return Collections.unmodifiableList(metrics);
+    }
+
+    private void runStage(Stage stage, StageMetrics stageMetrics, ReadableByteChannel source, WritableByteChannel sink) {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(maxFrameLength);
+        ByteBuffer in = BufferPool.shared().acquire(bufferSize);
+        final ByteBuffer out = sink == null ? null : BufferPool.shared().acquire(bufferSize);
+        StageEmitter emitter = new StageEmitter(sink, out, stageMetrics);
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                int n = source.read(in);
+                long start = System.nanoTime();
+                stageMetrics.waitNanos.lazySet(stageMetrics.waitNanos.get() + start - waitStart);
+                if (n == -1) {
+                    break;
+                }
+
+                in.flip();
+                long frames = 0;
+                ByteBuffer frame;
+                while ((frame = decoder.decode(in)) != null) {
+                    frames++;
+                    stage.process(frame, emitter);
+                }
+                in.compact();
+                emitter.flush();
+
+                stageMetrics.batches.lazySet(stageMetrics.batches.get() + 1);
+                stageMetrics.framesIn.lazySet(stageMetrics.framesIn.get() + frames);
+                stageMetrics.bytesIn.lazySet(stageMetrics.bytesIn.get() + n);
+                stageMetrics.busyNanos.lazySet(stageMetrics.busyNanos.get() + System.nanoTime() - start);
+            }
+            if (in.position() > 0) {
+                throw new IOException("stage " + stageMetrics.name + ": " + in.position() + " bytes of truncated frame");
+            }
+        } catch (IOException ex) {
+            failure.compareAndSet(null, new IOException("stage " + stageMetrics.name + " failed", ex));
+        } catch (RuntimeException ex) {
+            failure.compareAndSet(null, new IOException("stage " + stageMetrics.name + " failed", ex));
+        } finally {
+            stageMetrics.finished = System.nanoTime();
+            // 上一级再写会失败，下一级读完剩下的数据后退出
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            BufferPool.shared().release(in);
+            if (out != null) {
+                BufferPool.shared().release(out);
+            }
+        }
+    }
+
+    // 中间的级输出到下一级的缓冲区，最后一级输出到 output
+    private class StageEmitter implements Emitter {
+        private final WritableByteChannel sink;
+        private final ByteBuffer out;
+        private final StageMetrics stageMetrics;
+
+        StageEmitter(WritableByteChannel sink, ByteBuffer out, StageMetrics stageMetrics) {
+            this.sink = sink;
+            this.out = out;
+            this.stageMetrics = stageMetrics;
+        }
+
+        @Override
+        public void emit(ByteBuffer frame) throws IOException {
+            stageMetrics.framesOut.lazySet(stageMetrics.framesOut.get() + 1);
+            if (sink == null) {
+                if (output != null) {
+                    output.emit(frame);
+                }
+                return;
+            }
+            int length = frame.remaining();
+            if (length > maxFrameLength) {
+                throw new IOException("frame length " + length + " exceeds " + maxFrameLength);
+            }
+            if (out.remaining() < LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + length) {
+                flush();
+            }
+            LengthFieldFrameDecoder.encode(frame, out);
+        }
+
+        void flush() throws IOException {
+            if (sink == null || out.position() == 0) {
+                return;
+            }
+            out.flip();
+            while (out.hasRemaining()) {
+                sink.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     * 一级的统计，只有这一级的线程写，其他线程随时可以读
+     */
+    public static class StageMetrics {
+        private final String name;
+        private final long started = System.nanoTime();
+        private volatile long finished;
+        private final AtomicLong framesIn = new AtomicLong();
+        private final AtomicLong framesOut = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        StageMetrics(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getFramesIn() {
+            return framesIn.get();
+        }
+
+        public long getFramesOut() {
+            return framesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        // read() 的次数
+        public long getBatches() {
+            return batches.get();
+        }
+
+        // 处理帧（包括写到下一级）的时间
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        // 阻塞在 read() 上等上一级的时间
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        // 每秒处理的帧数，从创建到退出（还没退出时到现在）
+        public double getFramesPerSecond() {
+            long end = finished != 0 ? finished : System.nanoTime();
+            return end == started ? 0 : getFramesIn() * 1e9 / (end - started);
+        }
+
+        @Override
+        public String toString() {
+            long batchCount = getBatches();
+            long busy = getBusyNanos();
+            long total = busy + getWaitNanos();
+            return String.format("%-12s %12d frames in %12d out %10.0f frames/s %8.1f frames/batch %6.1f%% busy",
+                    name, getFramesIn(), getFramesOut(), getFramesPerSecond(),
+                    batchCount == 0 ? 0 : (double) getFramesIn() / batchCount,
+                    total == 0 ? 0 : busy * 100.0 / total);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并发送、流水线请求的 TCP 客户端，请求和响应都是长度前缀的帧（LengthFieldFrameDecoder）
+ *
+ * 一、TestNonBlockingNIO.client 每条消息一次 write()，就是一次系统调用、一个很小的 TCP 报文。
+ *      这里 send() 只是把消息追加到一个共用的直接缓冲区，由 IO 线程一次写出：
+ *          1. 攒够 flushThreshold 字节马上发送
+ *          2. 攒不够的话，第一条消息进来后最多等 flushDelayMicros 微秒发送，延迟有上限
+ *
+ * 二、两个缓冲区轮流使用（双缓冲）：IO 线程发送一个的同时，send() 往另一个里追加，互不等待。
+ *      发送的那个还没写完时不交换，这时 send() 继续追加，写得越慢合并得越多；追加的那个也满了 send() 才会等待。
+ *
+ * 三、不等响应就可以接着发（流水线），一个连接上可以有很多请求同时在途。
+ *      服务端按顺序回复，响应按 FIFO 顺序完成 send() 返回的 CompletableFuture，
+ *      future 在 IO 线程中完成，后续的回调不能阻塞。
+ *
+ * 四、select() 的超时只能精确到毫秒，离发送时间不到 1 毫秒时用 selectNow() 轮询
+ */
+public class PipelinedClient implements Runnable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024;
+    public static final long DEFAULT_FLUSH_DELAY_MICROS = 50;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final int flushThreshold;
+    private final long flushDelayNanos;
+    private final LengthFieldFrameDecoder decoder;
+
+    // send() 追加的缓冲区，写模式；下面的字段都由 this 保护
+    private ByteBuffer filling;
+    // 当前这一批第一条消息的发送时间
+    private long deadline;
+    private boolean closed;
+    // 和写入缓冲区的顺序一致
+    private final Queue<CompletableFuture<ByteBuffer>> inflight = new ConcurrentLinkedQueue<CompletableFuture<ByteBuffer>>();
+
+    // IO 线程正在发送的缓冲区，读模式
+    private ByteBuffer sending;
+    private final ByteBuffer readBuffer;
+
+    private volatile Thread thread;
+    private volatile IOException failure;
+    private long messages;
+    private long flushes;
+
+    public PipelinedClient(SocketAddress address) throws IOException {
+        this(address, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_THRESHOLD, DEFAULT_FLUSH_DELAY_MICROS, 1024 * 1024);
+    }
+
+    /**
+     * @param bufferSize        每个发送缓冲区的大小，也是一条消息（含长度）的最大长度
+     * @param flushThreshold    攒够多少字节马上发送
+     * @param flushDelayMicros  攒不够时最多等多久
+     * @param maxResponseLength 响应的最大长度
+     */
+    public PipelinedClient(SocketAddress address, int bufferSize, int flushThreshold, long flushDelayMicros,
+                           int maxResponseLength) throws IOException {
+        if (flushThreshold <= 0 || flushThreshold > bufferSize) {
+            throw new IllegalArgumentException("flushThreshold: " + flushThreshold);
+        }
+        this.flushThreshold = flushThreshold;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+        this.decoder = new LengthFieldFrameDecoder(maxResponseLength);
+        this.filling = ByteBuffer.allocateDirect(bufferSize);
+        this.sending = ByteBuffer.allocateDirect(bufferSize);
+        this.sending.flip();
+        this.readBuffer = ByteBuffer.allocateDirect(Math.max(DEFAULT_BUFFER_SIZE,
+                LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + maxResponseLength));
+
+        this.channel = SocketChannel.open(address);
+        this.channel.socket().setTcpNoDelay(true);
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+
+        Thread t = new Thread(this, "pipelined-client");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * 发送一条消息，可以在任意线程中调用，message 中剩余的字节会被复制
+     * 两个缓冲区都满时等待 IO 线程发送
+     *
+     * @return 收到对应的响应时完成，值是响应内容的副本
+     */
+    public CompletableFuture<ByteBuffer> send(ByteBuffer message) throws IOException {
+        int size = LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + message.remaining();
+        if (size > filling.capacity()) {
+            throw new IllegalArgumentException("message too large: " + message.remaining());
+        }
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        boolean wakeup = false;
+        synchronized (this) {
+            while (!closed && filling.remaining() < size) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", ex);
+                }
+            }
+            if (closed) {
+                throw failure != null ? failure : new ClosedChannelException();
+            }
+
+            if (filling.position() == 0) {
+                // 这一批的第一条消息，IO 线程可能正阻塞在没有超时的 select() 上
+                deadline = System.nanoTime() + flushDelayNanos;
+                wakeup = true;
+            }
+            LengthFieldFrameDecoder.encode(message, filling);
+            inflight.offer(future);
+            messages++;
+
+            if (filling.position() >= flushThreshold && filling.position() - size < flushThreshold) {
+                // 刚好攒够，叫 IO 线程马上发送
+                wakeup = true;
+            }
+        }
+        if (wakeup) {
+            selector.wakeup();
+        }
+        return future;
+    }
+
+    // 已经 send() 的消息数
+    public synchronized long getMessages() {
+        return messages;
+    }
+
+    // 写出的批次数，messages / flushes 就是平均每次合并了几条消息
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    // 还没收到响应的请求数
+    public int getInflight() {
+        return inflight.size();
+    }
+
+    public void close() throws InterruptedException {
+        fail(new ClosedChannelException());
+        Thread t = thread;
+        if (t != null && t != Thread.currentThread()) {
+            t.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isClosed()) {
+                long delay = trySwap(System.nanoTime());
+                if (delay >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(delay));
+                } else if (delay > 0) {
+                    selector.selectNow();
+                    Thread.yield();
+                } else {
+                    // 新一批的第一条消息、攒够、写就绪、收到响应都会让 select() 返回
+                    selector.select();
+                }
+                if (selector.selectedKeys().remove(key)) {
+                    if (key.isReadable()) {
+                        read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (ClosedSelectorException ex) {
+            // 已关闭
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            failInflight();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 正在发送的缓冲区写完了，并且攒够了或者到时间了，就交换两个缓冲区并写出
+     *
+     * @return 到这一批发送时间还有多少纳秒；0 表示不用定时（没有数据、上一批没写完或者已经交换）
+     */
+    private long trySwap(long now) throws IOException {
+        if (sending.hasRemaining()) {
+            return 0;
+        }
+        synchronized (this) {
+            if (filling.position() == 0) {
+                return 0;
+            }
+            if (filling.position() < flushThreshold && now - deadline < 0) {
+                return deadline - now;
+            }
+            ByteBuffer full = filling;
+            sending.clear();
+            filling = sending;
+            sending = full;
+            flushes++;
+            // 等待空间的 send() 可以继续了
+            notifyAll();
+        }
+        sending.flip();
+        write();
+        return 0;
+    }
+
+    private void write() throws IOException {
+        channel.write(sending);
+        int ops = sending.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void read() throws IOException {
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            ByteBuffer frame;
+            while ((frame = decoder.decode(readBuffer)) != null) {
+                CompletableFuture<ByteBuffer> future = inflight.poll();
+                if (future == null) {
+                    throw new IOException("unexpected response");
+                }
+                ByteBuffer response = ByteBuffer.allocate(frame.remaining());
+                response.put(frame);
+                response.flip();
+                future.complete(response);
+            }
+            readBuffer.compact();
+        }
+        if (n == -1) {
+            throw new IOException("connection closed by server");
+        }
+    }
+
+    private void fail(IOException cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failure = cause;
+            notifyAll();
+        }
+        selector.wakeup();
+    }
+
+    private void failInflight() {
+        IOException cause = failure != null ? failure : new ClosedChannelException();
+        CompletableFuture<ByteBuffer> future;
+        while ((future = inflight.poll()) != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
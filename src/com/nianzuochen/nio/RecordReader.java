@@ -0,0 +1,164 @@
+package com.nianzuochen.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * 读取 RecordWriter 写出的记录（分散读取）
+ *
+ * 一、从池中借一个读缓冲区，一次读取尽量多的数据，记录的负载直接是读缓冲区上的一个视图，不复制。
+ *      只有读缓冲区末尾不完整的那条记录会在 compact() 时移动到缓冲区开头。
+ *
+ * 二、比读缓冲区还大的记录，从池中再借一个恰好能放下负载的缓冲区，
+ *      用 read(ByteBuffer[]{负载缓冲区, 读缓冲区}) 分散读取：负载剩下的部分直接读进负载缓冲区，
+ *      紧跟在后面的记录读进读缓冲区，一次系统调用完成。
+ *
+ * 三、next() 返回的 Record 和其中的负载在下一次调用 next() 之前有效；用完后调用 close() 归还缓冲区。
+ */
+public class RecordReader {
+    public static class Record {
+        private int type;
+        private ByteBuffer payload;
+
+        public int getType() {
+            return type;
+        }
+
+        // 负载的只读范围是 position 到 limit
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+    }
+
+    private final ScatteringByteChannel channel;
+    private final BufferPool pool;
+    private final int maxRecordSize;
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    private final Record record = new Record();
+
+    private ByteBuffer buf;
+    private ByteBuffer view;
+    private ByteBuffer large;
+    private boolean eof;
+
+    public RecordReader(ScatteringByteChannel channel) {
+        this(channel, BufferPool.shared(), 64 * 1024, Integer.MAX_VALUE - RecordWriter.HEADER_SIZE);
+    }
+
+    /**
+     * @param bufferSize    读缓冲区大小
+     * @param maxRecordSize 负载长度超过这个值时认为数据已损坏
+     */
+    public RecordReader(ScatteringByteChannel channel, BufferPool pool, int bufferSize, int maxRecordSize) {
+        if (bufferSize < RecordWriter.HEADER_SIZE) {
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        }
+        this.channel = channel;
+        this.pool = pool;
+        this.maxRecordSize = maxRecordSize;
+        this.buf = pool.acquire(bufferSize);
+        this.buf.flip();
+        this.view = buf.duplicate();
+    }
+
+    /**
+     * 读取下一条记录
+     *
+     * @return 通道中没有更多记录时返回 null
+     */
+    public Record next() throws IOException {
+        if (large != null) {
+            pool.release(large);
+            large = null;
+        }
+
+        // 1. 头部
+        if (!ensure(RecordWriter.HEADER_SIZE)) {
+            return null;
+        }
+        int position = buf.position();
+        int length = buf.getInt(position);
+        int type = buf.getInt(position + 4);
+        if (length < 0 || length > maxRecordSize) {
+            throw new IOException("corrupt record length: " + length);
+        }
+        record.type = type;
+
+        // 2. 负载在读缓冲区中放得下
+        if (RecordWriter.HEADER_SIZE + length <= buf.limit() - position
+                || RecordWriter.HEADER_SIZE + length <= buf.capacity()) {
+            if (!ensure(RecordWriter.HEADER_SIZE + length)) {
+                throw new EOFException("truncated record");
+            }
+            int start = buf.position() + RecordWriter.HEADER_SIZE;
+            view.limit(start + length).position(start);
+            buf.position(start + length);
+            record.payload = view;
+            return record;
+        }
+
+        // 3. 大记录：已经读到的部分复制过去，剩下的分散读取
+        buf.position(position + RecordWriter.HEADER_SIZE);
+        large = pool.acquire(length);
+        large.put(buf);
+        buf.clear();
+        scatter[0] = large;
+        scatter[1] = buf;
+        while (large.hasRemaining()) {
+            if (channel.read(scatter) == -1) {
+                throw new EOFException("truncated record");
+            }
+        }
+        scatter[0] = null;
+        scatter[1] = null;
+        buf.flip();
+        large.flip();
+        record.payload = large;
+        return record;
+    }
+
+    // 保证读缓冲区中至少有 n 个字节，通道结束时返回 false
+    private boolean ensure(int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return true;
+        }
+        if (eof) {
+            if (buf.hasRemaining()) {
+                throw new EOFException("truncated record");
+            }
+            return false;
+        }
+
+        // 只移动末尾不完整的部分
+        buf.compact();
+        while (buf.position() < n) {
+            if (channel.read(buf) == -1) {
+                eof = true;
+                break;
+            }
+        }
+        buf.flip();
+        if (buf.remaining() >= n) {
+            return true;
+        }
+        if (buf.hasRemaining()) {
+            throw new EOFException("truncated record");
+        }
+        return false;
+    }
+
+    // 归还借用的缓冲区，不关闭通道
+    public void close() {
+        if (large != null) {
+            pool.release(large);
+            large = null;
+        }
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+            view = null;
+        }
+    }
+}
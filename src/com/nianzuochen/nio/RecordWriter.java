@@ -0,0 +1,114 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 批量写记录（聚集写入）
+ *
+ * 一、记录格式：头部 8 字节（int 负载长度 + int 类型）+ 负载
+ *
+ * 二、write() 只把头部和负载放进队列，攒够 maxBatch 条或者调用 flush() 时，
+ *      用一次 write(ByteBuffer[]) 把所有头部和负载一起写出（对应系统调用 writev），
+ *      小记录一条一次系统调用变成几百条一次。
+ *
+ * 三、头部放在预先分配好的直接缓冲区中，每条记录使用其中固定的一段，写记录时不分配任何对象。
+ *      负载缓冲区在 flush() 之前不能修改，写出后它的 position 会移动到 limit。
+ */
+public class RecordWriter {
+    public static final int HEADER_SIZE = 8;
+
+    // 每次 writev 的缓冲区个数上限（Linux 的 IOV_MAX 是 1024）
+    public static final int DEFAULT_MAX_BATCH = 512;
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer[] headers;
+    private final ByteBuffer[] iov;
+    private final ByteBuffer slab;
+    private int count;
+    private long pending;
+
+    private long records;
+    private long bytes;
+    private long writes;
+
+    public RecordWriter(GatheringByteChannel channel) {
+        this(channel, DEFAULT_MAX_BATCH);
+    }
+
+    public RecordWriter(GatheringByteChannel channel, int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch: " + maxBatch);
+        }
+        this.channel = channel;
+        this.headers = new ByteBuffer[maxBatch];
+        this.iov = new ByteBuffer[maxBatch * 2];
+        this.slab = ByteBuffer.allocateDirect(maxBatch * HEADER_SIZE);
+        for (int i = 0; i < maxBatch; i++) {
+            slab.limit((i + 1) * HEADER_SIZE).position(i * HEADER_SIZE);
+            headers[i] = slab.slice();
+        }
+    }
+
+    /**
+     * 把一条记录放进队列，队列满了会先写出
+     *
+     * @param payload 从 position 到 limit 的数据
+     */
+    public void write(int type, ByteBuffer payload) throws IOException {
+        if (count == headers.length) {
+            flush();
+        }
+        ByteBuffer header = headers[count];
+        header.clear();
+        header.putInt(payload.remaining()).putInt(type);
+        header.flip();
+
+        iov[count * 2] = header;
+        iov[count * 2 + 1] = payload;
+        pending += HEADER_SIZE + payload.remaining();
+        count++;
+    }
+
+    // 把队列中的记录全部写出
+    public void flush() throws IOException {
+        int offset = 0;
+        int length = count * 2;
+        while (pending > 0) {
+            long n = channel.write(iov, offset, length);
+            pending -= n;
+            bytes += n;
+            writes++;
+            // 跳过已经写完的缓冲区
+            while (length > 0 && !iov[offset].hasRemaining()) {
+                offset++;
+                length--;
+            }
+        }
+
+        records += count;
+        for (int i = 0; i < count * 2; i++) {
+            iov[i] = null;
+        }
+        count = 0;
+    }
+
+    // 队列中还没有写出的记录数
+    public int getQueued() {
+        return count;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    // write(ByteBuffer[]) 的调用次数
+    public long getWrites() {
+        return writes;
+    }
+}
@@ -0,0 +1,310 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同一个进程中线程之间传递字节的通道，用法和 Pipe 一样，基于无锁的环形缓冲区
+ *
+ * 一、TestNonBlocking3 中的 Pipe：每次 write()、read() 都是一次系统调用，数据还要复制到内核再复制回来。
+ *      这里生产者把数据复制到环形缓冲区，消费者直接从环形缓冲区复制出去，不进内核，不用锁。
+ *
+ * 二、两种生产者
+ *      单生产者（SPSC）：只有一个线程写，写完后发布 tail；空间不够时先写一部分
+ *      多生产者（MPSC）：先用 CAS 占一段空间（claimed），复制完后按占用的顺序依次发布，
+ *                       前面的生产者没发布完时后面的要等它。每次 write() 的内容是连续的，不会和别的生产者交错
+ *      消费者只能有一个。
+ *
+ * 三、write() 全部写完才返回，read() 默认至少读到一个字节才返回，等待的方式由 WaitStrategy 决定。
+ *      configureBlocking(false) 只影响消费者，read() 没有数据时返回 0；生产者不等待时用 offer()：
+ *      单生产者能写多少写多少，多生产者要么全写要么返回 0。
+ *
+ * 四、和选择器一起用：消费者是选择器线程时，用 wakeupSource() 得到一个 Pipe 的 source 注册 OP_READ，
+ *      每次 select() 之前调用 prepareSelect()，它返回 false 时环形缓冲区中有数据，应该用 selectNow()。
+ *      只有消费者将要阻塞在 select() 上（needsWakeup）时，生产者才往 Pipe 中写一个字节把它唤醒，
+ *      数据很多时几乎不会走 Pipe。发布 tail 总是 volatile 写再检查 needsWakeup，
+ *      生产者已经在写的时候消费者才调用 wakeupSource() 也不会漏掉唤醒。
+ *
+ * 五、关闭后 write() 抛出 ClosedChannelException，read() 读完剩下的数据后返回 -1
+ */
+public class RingByteChannel implements ByteChannel {
+    private static final int SELECT_SPINS = 1000;
+
+    private final byte[] ring;
+    private final int mask;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+
+    // 消费者已经读到的位置
+    private final AtomicLong head = new AtomicLong();
+    // 已经发布的位置，消费者读到这里为止
+    private final AtomicLong tail = new AtomicLong();
+    // 多生产者：已经被占用的位置
+    private final AtomicLong claimed = new AtomicLong();
+    // 单生产者看到的 head，只在生产者线程中访问，空间不够时才重新读 head
+    private long cachedHead;
+
+    private volatile boolean blocking = true;
+    private volatile boolean closed;
+
+    private final AtomicBoolean needsWakeup = new AtomicBoolean();
+    private volatile Pipe wakeupPipe;
+    // 以下只在消费者线程中访问
+    private ByteBuffer wakeupBuffer;
+    private boolean armed;
+
+    public RingByteChannel(int capacity) {
+        this(capacity, false, WaitStrategy.PARK);
+    }
+
+    /**
+     * @param capacity      环形缓冲区的大小，必须是 2 的幂；多生产者时也是一次 write() 的最大长度
+     * @param multiProducer 是否有多个线程同时写
+     */
+    public RingByteChannel(int capacity, boolean multiProducer, WaitStrategy waitStrategy) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public boolean isMultiProducer() {
+        return multiProducer;
+    }
+
+    // 可以读的字节数
+    public int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // 只影响 read()
+    public RingByteChannel configureBlocking(boolean block) {
+        this.blocking = block;
+        return this;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * 写入 src 剩下的全部内容，空间不够时等待
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return write(src, true);
+    }
+
+    /**
+     * 不等待：单生产者写入放得下的部分，多生产者放不下时不写
+     *
+     * @return 写入的字节数
+     */
+    public int offer(ByteBuffer src) throws IOException {
+        return write(src, false);
+    }
+
+    private int write(ByteBuffer src, boolean blocking) throws IOException {
+        ensureOpen();
+        int length = src.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        return multiProducer ? writeMulti(src, length, blocking) : writeSingle(src, length, blocking);
+    }
+
+    private int writeSingle(ByteBuffer src, int length, boolean blocking) throws IOException {
+        int written = 0;
+        int idle = 0;
+        while (written < length) {
+            long t = tail.get();
+            long free = ring.length - (t - cachedHead);
+            if (free == 0) {
+                cachedHead = head.get();
+                free = ring.length - (t - cachedHead);
+                if (free == 0) {
+                    if (!blocking) {
+                        break;
+                    }
+                    waitStrategy.idle(idle++);
+                    ensureOpen();
+                    continue;
+                }
+            }
+            idle = 0;
+            int n = (int) Math.min(free, length - written);
+            copyIn(src, t, n);
+            publish(t + n);
+            written += n;
+        }
+        return written;
+    }
+
+    private int writeMulti(ByteBuffer src, int length, boolean blocking) throws IOException {
+        if (length > ring.length) {
+            throw new IllegalArgumentException("write of " + length + " bytes exceeds capacity " + ring.length);
+        }
+        long c;
+        int idle = 0;
+        while (true) {
+            c = claimed.get();
+            if (c + length - head.get() > ring.length) {
+                if (!blocking) {
+                    return 0;
+                }
+                waitStrategy.idle(idle++);
+                ensureOpen();
+                continue;
+            }
+            if (claimed.compareAndSet(c, c + length)) {
+                break;
+            }
+        }
+        copyIn(src, c, length);
+        // 按占用的顺序发布：等前面的生产者发布完
+        idle = 0;
+        while (tail.get() != c) {
+            waitStrategy.idle(idle++);
+        }
+        publish(c + length);
+        return length;
+    }
+
+    private void copyIn(ByteBuffer src, long position, int n) {
+        int index = (int) position & mask;
+        int first = Math.min(n, ring.length - index);
+        src.get(ring, index, first);
+        if (first < n) {
+            src.get(ring, 0, n - first);
+        }
+    }
+
+    private void publish(long position) {
+        // 先发布再检查 needsWakeup，两者之间要有 StoreLoad 屏障，用 volatile 写。
+        // 不能看 wakeupPipe 是否为 null 决定用 lazySet：看到 null 之后消费者可能正好创建 Pipe、
+        // 设置 needsWakeup 并且没看到这次发布，就会一直阻塞在 select() 上
+        tail.set(position);
+        if (needsWakeup.get() && needsWakeup.compareAndSet(true, false)) {
+            try {
+                // prepareSelect() 先创建 Pipe 再设置 needsWakeup，这里一定不为 null
+                wakeupPipe.sink().write(ByteBuffer.allocate(1));
+            } catch (IOException ex) {
+                // 消费者关闭了 Pipe，不用再唤醒
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        long h = head.get();
+        int idle = 0;
+        while (true) {
+            long t = tail.get();
+            if (t > h) {
+                int n = (int) Math.min(t - h, dst.remaining());
+                int index = (int) h & mask;
+                int first = Math.min(n, ring.length - index);
+                dst.put(ring, index, first);
+                if (first < n) {
+                    dst.put(ring, 0, n - first);
+                }
+                head.lazySet(h + n);
+                return n;
+            }
+            if (closed) {
+                // 关闭之前发布的数据要先读完
+                if (tail.get() == h) {
+                    return -1;
+                }
+                continue;
+            }
+            if (!blocking) {
+                return 0;
+            }
+            waitStrategy.idle(idle++);
+        }
+    }
+
+    /**
+     * 消费者注册到选择器上的通道，有数据时可读
+     */
+    public synchronized Pipe.SourceChannel wakeupSource() throws IOException {
+        if (wakeupPipe == null) {
+            Pipe pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+            pipe.sink().configureBlocking(false);
+            wakeupBuffer = ByteBuffer.allocate(64);
+            wakeupPipe = pipe;
+        }
+        return wakeupPipe.source();
+    }
+
+    /**
+     * 消费者每次 select() 之前调用
+     *
+     * @return true 时可以阻塞在 select() 上，有数据写入时会被唤醒；false 时已经有数据，应该用 selectNow()
+     */
+    public boolean prepareSelect() throws IOException {
+        Pipe.SourceChannel source = wakeupSource();
+        if (armed) {
+            // 上次阻塞之前允许了唤醒，清空 Pipe 中的唤醒字节（关闭后 read() 返回 -1）
+            armed = false;
+            needsWakeup.set(false);
+            while (source.read(wakeupBuffer) > 0) {
+                wakeupBuffer.clear();
+            }
+        }
+        // 先空转一会儿，生产者很快又写的时候不用每次都通过 Pipe 唤醒
+        for (int i = 0; i < SELECT_SPINS; i++) {
+            if (tail.get() != head.get() || closed) {
+                return false;
+            }
+        }
+        needsWakeup.set(true);
+        if (tail.get() != head.get() || closed) {
+            needsWakeup.set(false);
+            return false;
+        }
+        armed = true;
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * 生产者或消费者都可以关闭。关闭 Pipe 的 sink，source 变成可读，阻塞在 select() 上的消费者被唤醒，
+     * 读完剩下的数据看到 -1 后由消费者关闭 wakeupSource()
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Pipe pipe = wakeupPipe;
+        if (pipe != null) {
+            pipe.sink().close();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+}
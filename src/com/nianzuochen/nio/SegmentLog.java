@@ -0,0 +1,683 @@
+package com.nianzuochen.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射（TestChannel.test2 中的 FileChannel.map）的只追加消息日志，每条消息有一个从 0 开始递增的偏移量
+ *
+ * 一、段：目录中每个段两个文件，"起始偏移量（20 位）.log" 和 ".index"。
+ *      段创建时按 segmentSize 映射（文件变成 segmentSize 大小的稀疏文件），追加就是往映射缓冲区里 put，
+ *      没有系统调用，也不经过用户态的缓冲区；放不下时滚动到新的段。
+ *
+ * 二、记录格式：int 长度 + int CRC32（长度和内容）+ 内容。
+ *      打开时校验每个段的记录，长度越界或者 CRC 不对（包括没写过的全 0 区域）就是末尾，
+ *      断电时写了一半的记录被丢弃，之后的追加从这里覆盖。
+ *
+ * 三、稀疏索引：每隔 indexInterval 字节记录一项（段内序号，位置），也是映射的。
+ *      按偏移量读时先二分查找段，再二分查找索引，最后往后最多扫描 indexInterval 字节。
+ *
+ * 四、持久化：见 DurabilityPolicy。force() 在后台线程中进行，一次覆盖之前所有的追加（组提交）
+ *
+ * 五、读：read(offset) 随机读，reader(offset) 从某个偏移量开始顺序读，读到末尾后 poll() 等新的消息，可以一直跟随。
+ *      返回的都是映射缓冲区的只读视图，不复制。
+ *      close() 不解除映射：读者不加锁，可能正在访问映射，解除映射后再访问会让 JVM 崩溃（SIGSEGV），
+ *      映射在段和所有视图都被垃圾回收后才解除，所以 close() 之前返回的视图之后仍然可以读。
+ *
+ * 六、append() 可以在多个线程中调用，锁内只是一次内存复制和 CRC；读者不加锁，
+ *      通过段的 volatile 写入位置看到已经写完的记录
+ */
+public class SegmentLog implements Closeable {
+    public static final int HEADER_SIZE = 8;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_INDEX_INTERVAL = 4 * 1024;
+
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final DurabilityPolicy policy;
+    // 按起始偏移量排序，读者不加锁访问
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private final CRC32 crc = new CRC32();
+
+    // 以下由 this 保护
+    private Segment active;
+    // 第一个可能有没 force() 的数据的段
+    private int unflushed;
+
+    private volatile long nextOffset;
+    private volatile boolean closed;
+
+    // 以下由 flushLock 保护，小于 durableOffset 的消息都已经 force()
+    private final Object flushLock = new Object();
+    private long durableOffset;
+    private boolean flushRequested;
+    // close() 最后一次 force() 已经结束，之后 durableOffset 不会再增加
+    private boolean finalFlushed;
+
+    // 同一时间只有一个线程 force()
+    private final Object forceLock = new Object();
+    private final Thread flusher;
+
+    private final Object readerLock = new Object();
+    private final AtomicInteger waitingReaders = new AtomicInteger();
+
+    public SegmentLog(Path dir, DurabilityPolicy policy) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL, policy);
+    }
+
+    /**
+     * 打开目录中已有的日志（没有时新建），恢复每个段的末尾
+     *
+     * @param segmentSize   新段的大小，也是一条消息的上限（加上 8 字节头部）
+     * @param indexInterval 每隔多少字节记录一个索引项
+     */
+    public SegmentLog(Path dir, int segmentSize, int indexInterval, DurabilityPolicy policy) throws IOException {
+        if (segmentSize <= HEADER_SIZE || indexInterval <= 0) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize + ", indexInterval: " + indexInterval);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.policy = policy;
+
+        Files.createDirectories(dir);
+        List<Long> bases = new ArrayList<Long>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX);
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(bases);
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        for (int i = 0; i < bases.size(); i++) {
+            segments.add(new Segment(bases.get(i), i == bases.size() - 1));
+        }
+
+        active = segments.get(segments.size() - 1);
+        unflushed = segments.size() - 1;
+        nextOffset = active.baseOffset + active.count;
+        durableOffset = nextOffset;
+
+        if (policy.needsFlusher()) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runFlusher();
+                }
+            }, "segment-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * 追加一条消息，message 从 position 到 limit 的内容被复制到映射缓冲区中，position 不变。
+     * 策略是 groupCommit 时等到数据 force() 之后才返回
+     *
+     * @return 消息的偏移量
+     */
+    public long append(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("message length " + length + " exceeds segment size " + segmentSize);
+        }
+        long offset;
+        synchronized (this) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (active.capacity - active.position < HEADER_SIZE + length) {
+                roll();
+            }
+            offset = nextOffset;
+            active.append(message);
+            nextOffset = offset + 1;
+        }
+        if (waitingReaders.get() > 0) {
+            synchronized (readerLock) {
+                readerLock.notifyAll();
+            }
+        }
+        if (policy.isSync()) {
+            awaitDurable(offset);
+        }
+        return offset;
+    }
+
+    // 当前的段写满了，在 this 锁中调用
+    private void roll() throws IOException {
+        active = new Segment(nextOffset, false);
+        segments.add(active);
+    }
+
+    /**
+     * 等到 offset 及之前的消息都 force() 到磁盘；没有后台线程时在当前线程中 force()
+     */
+    public void awaitDurable(long offset) throws IOException {
+        if (flusher == null) {
+            // 不经过 flush()：和 close() 同时进行时不抛异常，多 force() 一次没有关系
+            synchronized (forceLock) {
+                if (getDurableOffset() <= offset) {
+                    force();
+                }
+            }
+            return;
+        }
+        synchronized (flushLock) {
+            if (durableOffset > offset) {
+                return;
+            }
+            flushRequested = true;
+            flushLock.notifyAll();
+            try {
+                while (durableOffset <= offset) {
+                    // 后台线程在 close() 时先退出，close() 之前追加的消息等 close() 最后的 force()
+                    if (finalFlushed) {
+                        throw new ClosedChannelException();
+                    }
+                    flushLock.wait(100);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * 立即 force() 所有已经追加的消息
+     */
+    public void flush() throws IOException {
+        synchronized (forceLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            force();
+        }
+    }
+
+    // 在 forceLock 中调用
+    private void force() {
+        long target;
+        List<Segment> dirty;
+        synchronized (this) {
+            target = nextOffset;
+            dirty = new ArrayList<Segment>(segments.subList(unflushed, segments.size()));
+            unflushed = segments.size() - 1;
+        }
+        for (Segment segment : dirty) {
+            segment.force();
+        }
+        synchronized (flushLock) {
+            if (target > durableOffset) {
+                durableOffset = target;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    private void runFlusher() {
+        long interval = policy.getIntervalNanos();
+        long linger = policy.getLingerNanos();
+        try {
+            while (!closed) {
+                synchronized (flushLock) {
+                    if (policy.isSync()) {
+                        while (!closed && !flushRequested) {
+                            flushLock.wait();
+                        }
+                    } else {
+                        long deadline = System.nanoTime() + interval;
+                        long remaining;
+                        while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+                        }
+                    }
+                    flushRequested = false;
+                }
+                if (closed) {
+                    break;
+                }
+                if (linger > 0) {
+                    // 多等一会，让更多的追加者搭上这一次 force()
+                    LockSupport.parkNanos(linger);
+                }
+                synchronized (forceLock) {
+                    if (closed) {
+                        break;
+                    }
+                    force();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // close()
+        }
+    }
+
+    /**
+     * 随机读一条消息
+     *
+     * @return 映射缓冲区中这条消息的只读视图
+     */
+    public ByteBuffer read(long offset) {
+        if (offset < getStartOffset() || offset >= nextOffset) {
+            throw new IndexOutOfBoundsException("offset " + offset + " not in [" + getStartOffset() + ", " + nextOffset + ")");
+        }
+        Segment segment = segments.get(segmentIndex(offset));
+        return segment.payload(segment.find(offset));
+    }
+
+    /**
+     * 从 offset 开始顺序读的读者，offset 可以是 getNextOffset()，只读之后追加的消息
+     */
+    public Reader reader(long offset) {
+        if (offset < getStartOffset() || offset > nextOffset) {
+            throw new IndexOutOfBoundsException("offset " + offset + " not in [" + getStartOffset() + ", " + nextOffset + "]");
+        }
+        return new Reader(offset);
+    }
+
+    // 包含 offset 的段：起始偏移量不大于 offset 的最后一个
+    private int segmentIndex(long offset) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).baseOffset <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    public long getStartOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    // 下一条消息的偏移量，也就是消息的总数（从 0 开始时）
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    // 小于这个偏移量的消息都已经 force() 到磁盘
+    public long getDurableOffset() {
+        synchronized (flushLock) {
+            return durableOffset;
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * force() 所有的消息，在 awaitDurable() 中等待的追加者等到这一次 force() 后返回。
+     * 之后不能再追加，Reader.next() 抛出 IllegalStateException，Reader.poll() 返回 null；
+     * 映射不在这里解除（见类注释五），之前返回的视图仍然可以读
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (forceLock) {
+            try {
+                force();
+            } finally {
+                synchronized (flushLock) {
+                    finalFlushed = true;
+                    flushLock.notifyAll();
+                }
+            }
+        }
+        synchronized (readerLock) {
+            readerLock.notifyAll();
+        }
+    }
+
+    private static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    /**
+     * 顺序读者，只能在一个线程中使用
+     */
+    public class Reader {
+        private int segmentIndex;
+        private Segment segment;
+        private int position;
+        private long offset;
+
+        Reader(long offset) {
+            this.segmentIndex = segmentIndex(offset);
+            this.segment = segments.get(segmentIndex);
+            this.position = segment.find(offset);
+            this.offset = offset;
+        }
+
+        // 下一条要读的消息的偏移量
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return 下一条消息的只读视图，已经读到末尾时返回 null
+         */
+        public ByteBuffer next() {
+            if (closed) {
+                throw new IllegalStateException("log closed");
+            }
+            return advance();
+        }
+
+        // next() 去掉关闭检查，poll() 在关闭时返回 null 而不是抛异常
+        private ByteBuffer advance() {
+            while (true) {
+                if (position < segment.position) {
+                    ByteBuffer payload = segment.payload(position);
+                    position = payload.limit();
+                    offset++;
+                    return payload;
+                }
+                if (segmentIndex + 1 >= segments.size()) {
+                    return null;
+                }
+                // 看到新的段之后再看一次，滚动之前追加的记录一定能看到
+                if (position < segment.position) {
+                    continue;
+                }
+                segment = segments.get(++segmentIndex);
+                position = 0;
+            }
+        }
+
+        /**
+         * 等待下一条消息
+         *
+         * @return 超时或者日志关闭时返回 null
+         */
+        public ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (closed) {
+                return null;
+            }
+            ByteBuffer message = advance();
+            if (message != null) {
+                return message;
+            }
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            waitingReaders.incrementAndGet();
+            try {
+                synchronized (readerLock) {
+                    // 等待期间关闭时 message 还是 null
+                    while (!closed && (message = advance()) == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return null;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(readerLock, remaining);
+                    }
+                }
+            } finally {
+                waitingReaders.decrementAndGet();
+            }
+            return message;
+        }
+    }
+
+    // 一个段，映射缓冲区的 limit 始终是 capacity，只用绝对下标访问，多个线程可以同时读
+    private final class Segment {
+        private final long baseOffset;
+        private final int capacity;
+        private final MappedByteBuffer log;
+        private final MappedByteBuffer index;
+        private final ByteBuffer readOnly;
+        // 追加时复制内容、计算 CRC 用，只在 SegmentLog 的锁中使用
+        private final ByteBuffer writeView;
+        private final int maxIndexEntries;
+
+        // 追加者在锁中写，读者不加锁读；先写记录和索引，最后写 position
+        private volatile int position;
+        private volatile int count;
+        private volatile int indexEntries;
+        private int lastIndexed;
+
+        Segment(long baseOffset, boolean rebuildIndex) throws IOException {
+            this.baseOffset = baseOffset;
+            FileChannel channel = FileChannel.open(dir.resolve(fileName(baseOffset, LOG_SUFFIX)),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                // 已有的段按原来的大小映射，新段按 segmentSize，映射后文件变成这个大小（稀疏文件）
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("segment " + baseOffset + " too large: " + size);
+                }
+                this.capacity = size > 0 ? (int) size : segmentSize;
+                this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                channel.close();
+            }
+
+            this.maxIndexEntries = capacity / indexInterval + 1;
+            channel = FileChannel.open(dir.resolve(fileName(baseOffset, INDEX_SUFFIX)),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                this.index = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) maxIndexEntries * INDEX_ENTRY_SIZE);
+            } finally {
+                channel.close();
+            }
+
+            this.readOnly = log.asReadOnlyBuffer();
+            this.writeView = log.duplicate();
+            recover(rebuildIndex);
+        }
+
+        /**
+         * 找到最后一条完整的记录。映射的页写回磁盘的顺序是任意的，断电后前面的页可能还没写回而后面的已经写回，
+         * 所以最后一个段从头校验并重建索引；之前的段在滚动后不久就被 force()，只从最后一个索引项开始校验
+         */
+        private void recover(boolean rebuildIndex) {
+            // 第 0 项固定是（0，0），不存储；之后的项序号和位置都递增
+            int entries = 0;
+            if (!rebuildIndex) {
+                while (entries < maxIndexEntries) {
+                    int relative = index.getInt(entries * INDEX_ENTRY_SIZE);
+                    int at = index.getInt(entries * INDEX_ENTRY_SIZE + 4);
+                    if (relative <= (entries == 0 ? 0 : entryRelative(entries - 1))
+                            || at <= (entries == 0 ? 0 : entryPosition(entries - 1)) || at >= capacity) {
+                        break;
+                    }
+                    entries++;
+                }
+                // 最后一项指向的记录不完整时退回前一项
+                while (entries > 0 && validRecordEnd(entryPosition(entries - 1)) < 0) {
+                    entries--;
+                }
+            }
+            for (int i = entries; i < maxIndexEntries; i++) {
+                if (index.getLong(i * INDEX_ENTRY_SIZE) != 0) {
+                    index.putLong(i * INDEX_ENTRY_SIZE, 0);
+                }
+            }
+            indexEntries = entries;
+
+            int relative = entries == 0 ? 0 : entryRelative(entries - 1);
+            int at = entries == 0 ? 0 : entryPosition(entries - 1);
+            lastIndexed = at;
+            int next;
+            while ((next = validRecordEnd(at)) > 0) {
+                addIndexEntry(relative, at);
+                at = next;
+                relative++;
+            }
+            count = relative;
+            position = at;
+            if (rebuildIndex) {
+                clearFrom(at);
+            }
+        }
+
+        // 末尾之后的旧数据（写了一半的记录和它之后的记录）清零，否则新追加的记录之后可能正好接上旧的完整记录；
+        // 只写不是 0 的部分，没写过的区域读到的都是 0，文件仍然是稀疏的
+        private void clearFrom(int at) {
+            int i = at;
+            for (; i < capacity && (i & 7) != 0; i++) {
+                if (log.get(i) != 0) {
+                    log.put(i, (byte) 0);
+                }
+            }
+            for (; i + 8 <= capacity; i += 8) {
+                if (log.getLong(i) != 0) {
+                    log.putLong(i, 0);
+                }
+            }
+            for (; i < capacity; i++) {
+                if (log.get(i) != 0) {
+                    log.put(i, (byte) 0);
+                }
+            }
+        }
+
+        private int entryRelative(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_SIZE);
+        }
+
+        private int entryPosition(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_SIZE + 4);
+        }
+
+        // 离上一个索引项超过 indexInterval 字节时为这条记录加一项
+        private void addIndexEntry(int relative, int at) {
+            if (relative > 0 && at - lastIndexed >= indexInterval && indexEntries < maxIndexEntries) {
+                int entry = indexEntries;
+                index.putInt(entry * INDEX_ENTRY_SIZE, relative);
+                index.putInt(entry * INDEX_ENTRY_SIZE + 4, at);
+                lastIndexed = at;
+                indexEntries = entry + 1;
+            }
+        }
+
+        // at 处是一条完整的记录时返回它的结束位置，否则返回 -1
+        private int validRecordEnd(int at) {
+            if (at > capacity - HEADER_SIZE) {
+                return -1;
+            }
+            int length = log.getInt(at);
+            if (length < 0 || length > capacity - HEADER_SIZE - at) {
+                return -1;
+            }
+            return checksum(at, length) == log.getInt(at + 4) ? at + HEADER_SIZE + length : -1;
+        }
+
+        // 长度和内容的 CRC32
+        private int checksum(int at, int length) {
+            crc.reset();
+            writeView.limit(at + 4).position(at);
+            crc.update(writeView);
+            writeView.limit(at + HEADER_SIZE + length).position(at + HEADER_SIZE);
+            crc.update(writeView);
+            return (int) crc.getValue();
+        }
+
+        // 在 SegmentLog 的锁中调用，调用前已经确认放得下
+        void append(ByteBuffer message) {
+            int at = position;
+            int length = message.remaining();
+            int start = message.position();
+            log.putInt(at, length);
+            writeView.limit(at + HEADER_SIZE + length).position(at + HEADER_SIZE);
+            writeView.put(message);
+            message.position(start);
+            log.putInt(at + 4, checksum(at, length));
+
+            int relative = count;
+            addIndexEntry(relative, at);
+            count = relative + 1;
+            position = at + HEADER_SIZE + length;
+        }
+
+        // 偏移量为 offset 的记录的位置，offset 可以等于末尾
+        int find(long offset) {
+            int target = (int) (offset - baseOffset);
+            int relative = 0;
+            int at = 0;
+            int lo = 0;
+            int hi = indexEntries - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int entryRelative = index.getInt(mid * INDEX_ENTRY_SIZE);
+                if (entryRelative <= target) {
+                    relative = entryRelative;
+                    at = index.getInt(mid * INDEX_ENTRY_SIZE + 4);
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            for (; relative < target; relative++) {
+                at += HEADER_SIZE + log.getInt(at);
+            }
+            return at;
+        }
+
+        // at 处记录内容的只读视图，limit 是下一条记录的位置
+        ByteBuffer payload(int at) {
+            ByteBuffer view = readOnly.duplicate();
+            view.limit(at + HEADER_SIZE + log.getInt(at)).position(at + HEADER_SIZE);
+            return view;
+        }
+
+        void force() {
+            log.force();
+            index.force();
+        }
+    }
+}
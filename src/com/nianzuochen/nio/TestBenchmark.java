@@ -0,0 +1,657 @@
+package com.nianzuochen.nio;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通道、缓冲区、文件复制的基准测试
+ *
+ * 一、运行参数（-D 指定）
+ *      bench.dir       测试文件所在目录，默认系统临时目录，大文件测试时指定到要测的磁盘上
+ *      bench.maxSize   参与复制测试的最大文件，默认 64m，最大可以到 4g（需要足够的磁盘空间）
+ *                      也是 lineIndex 生成的日志文件大小
+ *      bench.duration  每轮压测的毫秒数，默认 2000
+ *
+ * 二、同一个文件反复复制，测到的是页缓存的速度，要测磁盘需要在每轮之间清空页缓存
+ *
+ * 三、网络的测试都走本机回环，服务端和客户端在同一个进程中
+ */
+public class TestBenchmark {
+    private static final long[] FILE_SIZES = {
+            4L * 1024, 64L * 1024, 1024L * 1024, 16L * 1024 * 1024,
+            256L * 1024 * 1024, 1024L * 1024 * 1024, 4L * 1024 * 1024 * 1024
+    };
+
+    private static final int[] BUFFER_SIZES = {
+            1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024
+    };
+
+    private final Path dir = Paths.get(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")));
+    private final long maxSize = MicroBench.parseSize(System.getProperty("bench.maxSize", "64m"));
+    private final long duration = Long.getLong("bench.duration", 2000);
+
+    // 1. 各种复制方式在不同文件大小下的表现
+    @Test
+    public void copyStrategies() throws Exception {
+        MicroBench.printHeader();
+        for (long size : FILE_SIZES) {
+            if (size > maxSize) {
+                break;
+            }
+            final Path source = createFile("bench-src-" + MicroBench.formatSize(size), size);
+            final Path target = dir.resolve("bench-dst");
+            MicroBench bench = iterations(size);
+            try {
+                // TestChannel.test1 的写法：1K 非直接缓冲区
+                final FileCopier test1 = new FileCopier(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1024);
+                bench.run("copy " + MicroBench.formatSize(size) + " HEAP(1K)", new MicroBench.Body() {
+                    public long run() throws Exception {
+                        return test1.copy(source, target, CopyStrategy.HEAP).getBytes();
+                    }
+                });
+
+                final FileCopier copier = new FileCopier();
+                for (final CopyStrategy strategy : CopyStrategy.values()) {
+                    bench.run("copy " + MicroBench.formatSize(size) + " " + strategy, new MicroBench.Body() {
+                        public long run() throws Exception {
+                            return copier.copy(source, target, strategy).getBytes();
+                        }
+                    });
+                }
+                bench.run("copy " + MicroBench.formatSize(size) + " auto", new MicroBench.Body() {
+                    public long run() throws Exception {
+                        return copier.copy(source, target).getBytes();
+                    }
+                });
+
+                for (final CopyStrategy strategy : new CopyStrategy[]{CopyStrategy.DIRECT, CopyStrategy.TRANSFER}) {
+                    final ParallelFileCopier parallel = new ParallelFileCopier(ForkJoinPool.commonPool(), strategy,
+                            Math.max(1024 * 1024, size / (4L * Runtime.getRuntime().availableProcessors())), 1024 * 1024, 0);
+                    bench.run("copy " + MicroBench.formatSize(size) + " parallel " + strategy, new MicroBench.Body() {
+                        public long run() throws Exception {
+                            return parallel.copy(source, target).getBytes();
+                        }
+                    });
+                }
+            } finally {
+                Files.deleteIfExists(source);
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    // 2. 缓冲区大小对循环复制的影响
+    @Test
+    public void bufferSizeSweep() throws Exception {
+        long size = Math.min(maxSize, 64L * 1024 * 1024);
+        final Path source = createFile("bench-src-sweep", size);
+        final Path target = dir.resolve("bench-dst");
+        MicroBench bench = iterations(size);
+        MicroBench.printHeader();
+        try {
+            for (int bufferSize : BUFFER_SIZES) {
+                final FileCopier copier = new FileCopier(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, bufferSize);
+                for (final CopyStrategy strategy : new CopyStrategy[]{CopyStrategy.HEAP, CopyStrategy.DIRECT}) {
+                    bench.run("copy " + MicroBench.formatSize(size) + " " + strategy + "(" + MicroBench.formatSize(bufferSize) + ")",
+                            new MicroBench.Body() {
+                                public long run() throws Exception {
+                                    return copier.copy(source, target, strategy).getBytes();
+                                }
+                            });
+                }
+            }
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    // 3. 非直接缓冲区和直接缓冲区的分配（TestBuffer.test3）
+    @Test
+    public void bufferAllocation() throws Exception {
+        MicroBench bench = new MicroBench(5, 10);
+        MicroBench.printHeader();
+        for (final int bufferSize : BUFFER_SIZES) {
+            final int count = Math.max(1, 64 * 1024 * 1024 / bufferSize / 16);
+            bench.run("allocate x" + count + " " + MicroBench.formatSize(bufferSize), new MicroBench.Body() {
+                public long run() {
+                    for (int i = 0; i < count; i++) {
+                        MicroBench.blackhole += ByteBuffer.allocate(bufferSize).capacity();
+                    }
+                    return 0;
+                }
+            });
+            bench.run("allocateDirect x" + count + " " + MicroBench.formatSize(bufferSize), new MicroBench.Body() {
+                public long run() {
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+                        MicroBench.blackhole += buf.capacity();
+                        DirectBuffers.unmap(buf);
+                    }
+                    return 0;
+                }
+            });
+            bench.run("BufferPool x" + count + " " + MicroBench.formatSize(bufferSize), new MicroBench.Body() {
+                public long run() {
+                    BufferPool pool = BufferPool.shared();
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buf = pool.acquire(bufferSize);
+                        MicroBench.blackhole += buf.capacity();
+                        pool.release(buf);
+                    }
+                    return 0;
+                }
+            });
+        }
+    }
+
+    // 4. 非直接缓冲区和直接缓冲区的读写
+    @Test
+    public void bufferAccess() throws Exception {
+        MicroBench bench = new MicroBench(5, 10);
+        MicroBench.printHeader();
+        for (int bufferSize : BUFFER_SIZES) {
+            final ByteBuffer heap = ByteBuffer.allocate(bufferSize);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(bufferSize);
+            final byte[] bytes = new byte[bufferSize];
+            final int rounds = Math.max(1, 64 * 1024 * 1024 / bufferSize);
+
+            for (final ByteBuffer buf : new ByteBuffer[]{heap, direct}) {
+                String kind = buf.isDirect() ? "direct" : "heap";
+                bench.run(kind + " putLong/getLong " + MicroBench.formatSize(bufferSize), new MicroBench.Body() {
+                    public long run() {
+                        long sum = 0;
+                        for (int r = 0; r < rounds; r++) {
+                            buf.clear();
+                            while (buf.remaining() >= 8) {
+                                buf.putLong(r);
+                            }
+                            buf.flip();
+                            while (buf.remaining() >= 8) {
+                                sum += buf.getLong();
+                            }
+                        }
+                        MicroBench.blackhole += sum;
+                        return 2L * rounds * buf.capacity();
+                    }
+                });
+                bench.run(kind + " bulk put/get " + MicroBench.formatSize(bufferSize), new MicroBench.Body() {
+                    public long run() {
+                        for (int r = 0; r < rounds; r++) {
+                            buf.clear();
+                            buf.put(bytes);
+                            buf.flip();
+                            buf.get(bytes);
+                        }
+                        return 2L * rounds * buf.capacity();
+                    }
+                });
+            }
+            DirectBuffers.unmap(direct);
+        }
+    }
+
+    // 5. 并发上传：每个连接一个（虚拟）线程的阻塞服务端 和 多 Reactor 选择器服务端
+    @Test
+    public void uploadServers() throws Exception {
+        final long size = Math.min(maxSize, 4L * 1024 * 1024);
+        final Path source = createFile("bench-src-upload", size);
+        final Path root = dir.resolve("bench-upload");
+        Files.createDirectories(root);
+        MicroBench bench = new MicroBench(2, 5);
+        MicroBench.printHeader();
+
+        FileTransferServer blocking = new FileTransferServer(root, new InetSocketAddress("127.0.0.1", 0));
+        blocking.start();
+        final InetSocketAddress blockingAddress = blocking.getLocalAddress();
+
+        final AtomicInteger ids = new AtomicInteger();
+        MultiReactorServer selector = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0),
+                Runtime.getRuntime().availableProcessors(), MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+            @Override
+            public void onOpen(Connection connection) {
+                try {
+                    connection.setAttachment(FileChannel.open(root.resolve("selector-" + ids.getAndIncrement() % 1024),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+                } catch (IOException ex) {
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                FileChannel outChannel = (FileChannel) connection.getAttachment();
+                try {
+                    while (message.hasRemaining()) {
+                        outChannel.write(message);
+                    }
+                } catch (IOException ex) {
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+                try {
+                    ((FileChannel) connection.getAttachment()).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        selector.start();
+        final InetSocketAddress selectorAddress = selector.getLocalAddress();
+
+        System.out.println("blocking server uses " + (blocking.isVirtualThreads() ? "virtual threads" : "platform threads"));
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            for (final int count : new int[]{1, 16, 256}) {
+                bench.run("upload " + count + " x " + MicroBench.formatSize(size) + " blocking", new MicroBench.Body() {
+                    public long run() throws Exception {
+                        return concurrently(clients, count, new Callable<Long>() {
+                            public Long call() throws Exception {
+                                FileTransferClient client = new FileTransferClient(blockingAddress);
+                                try {
+                                    return client.upload(source, "blocking-" + ids.getAndIncrement() % 1024);
+                                } finally {
+                                    client.close();
+                                }
+                            }
+                        });
+                    }
+                });
+                bench.run("upload " + count + " x " + MicroBench.formatSize(size) + " selector", new MicroBench.Body() {
+                    public long run() throws Exception {
+                        return concurrently(clients, count, new Callable<Long>() {
+                            public Long call() throws Exception {
+                                // 发完后关闭输出，等服务端关闭连接
+                                SocketChannel sChannel = SocketChannel.open(selectorAddress);
+                                FileChannel inChannel = FileChannel.open(source, StandardOpenOption.READ);
+                                try {
+                                    FileTransferProtocol.sendFile(inChannel, 0, size, sChannel);
+                                    sChannel.shutdownOutput();
+                                    ByteBuffer buf = ByteBuffer.allocate(1);
+                                    while (sChannel.read(buf) != -1) {
+                                        buf.clear();
+                                    }
+                                    return size;
+                                } finally {
+                                    inChannel.close();
+                                    sChannel.close();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        } finally {
+            clients.shutdown();
+            blocking.shutdown();
+            blocking.awaitTermination();
+            selector.shutdown();
+            selector.awaitTermination();
+            Files.deleteIfExists(source);
+            DirectoryStream<Path> files = Files.newDirectoryStream(root);
+            try {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            } finally {
+                files.close();
+            }
+            Files.delete(root);
+        }
+    }
+
+    // 6. 同一个进程中线程之间传递小消息：Pipe 和 环形缓冲区通道
+    @Test
+    public void inProcessChannels() throws Exception {
+        final long total = 16L * 1024 * 1024;
+        final int messageSize = 64;
+        MicroBench bench = new MicroBench(2, 5);
+        MicroBench.printHeader();
+        ExecutorService producers = Executors.newSingleThreadExecutor();
+        try {
+            bench.run("pipe " + messageSize + "B messages", new MicroBench.Body() {
+                public long run() throws Exception {
+                    Pipe pipe = Pipe.open();
+                    try {
+                        return transfer(producers, pipe.sink(), pipe.source(), total, messageSize);
+                    } finally {
+                        pipe.sink().close();
+                        pipe.source().close();
+                    }
+                }
+            });
+            for (final WaitStrategy strategy : WaitStrategy.values()) {
+                for (final boolean multiProducer : new boolean[]{false, true}) {
+                    bench.run("ring " + (multiProducer ? "MPSC " : "SPSC ") + strategy, new MicroBench.Body() {
+                        public long run() throws Exception {
+                            RingByteChannel ring = new RingByteChannel(64 * 1024, multiProducer, strategy);
+                            return transfer(producers, ring, ring, total, messageSize);
+                        }
+                    });
+                }
+            }
+        } finally {
+            producers.shutdown();
+        }
+    }
+
+    // 7. 回显服务端的延迟：尽快发送（closed loop）时的吞吐量，按固定速率发送（open loop）时的延迟分布
+    @Test
+    public void echoLatency() throws Exception {
+        final int messageSize = 64;
+        MultiReactorServer server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0),
+                Runtime.getRuntime().availableProcessors(), MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+            @Override
+            public void onOpen(Connection connection) {
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                ByteBuffer length = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE);
+                length.putInt(0, message.remaining());
+                connection.write(length);
+                connection.write(message);
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+            }
+        }, new LengthFieldFrameDecoder(messageSize));
+        server.start();
+        try {
+            InetSocketAddress address = server.getLocalAddress();
+            for (int connections : new int[]{1, 16, 64}) {
+                System.out.println(new LoadGenerator(connections, 0, messageSize, duration)
+                        .runTcp(address, LoadGenerator.Mode.CLOSED_LOOP));
+            }
+            // 速率超过服务端的能力后，open loop 的延迟会一直增长，closed loop 只是吞吐量不再增长
+            for (double rate : new double[]{10000, 50000, 100000}) {
+                System.out.println(new LoadGenerator(16, rate, messageSize, duration)
+                        .runTcp(address, LoadGenerator.Mode.CLOSED_LOOP));
+                System.out.println(new LoadGenerator(16, rate, messageSize, duration)
+                        .runTcp(address, LoadGenerator.Mode.OPEN_LOOP));
+            }
+        } finally {
+            server.shutdown();
+            server.awaitTermination();
+        }
+    }
+
+    // 8. UDP 的单向延迟和丢包：接收端只有一个 worker，记录到一个直方图中
+    @Test
+    public void udpLatency() throws Exception {
+        for (double rate : new double[]{10000, 100000, 400000}) {
+            Histogram latency = new Histogram();
+            AtomicLong lastReceived = new AtomicLong();
+            UdpIngestor ingestor = new UdpIngestor(new InetSocketAddress("127.0.0.1", 0), 1, 4096, 2048, 64,
+                    LoadGenerator.latencyHandler(latency, lastReceived));
+            ingestor.start();
+            try {
+                System.out.println(new LoadGenerator(4, rate, 64, duration)
+                        .runUdp(ingestor.getLocalAddress(), latency, lastReceived));
+            } finally {
+                ingestor.shutdown();
+                ingestor.awaitTermination();
+            }
+        }
+    }
+
+    // 9. 持久化消息：每条消息 write() + force()，和 SegmentLog 的各种持久化策略（4 个线程追加）
+    @Test
+    public void messageLog() throws Exception {
+        final int messageSize = 1024;
+        final int threads = 4;
+        MicroBench bench = new MicroBench(1, 3);
+        MicroBench.printHeader();
+        final Path root = dir.resolve("bench-log");
+        ExecutorService appenders = Executors.newFixedThreadPool(threads);
+        try {
+            final Path file = root.resolve("messages");
+            Files.createDirectories(root);
+            bench.run("write + force per message", new MicroBench.Body() {
+                public long run() throws Exception {
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                    try {
+                        ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+                        for (int i = 0; i < 1000; i++) {
+                            message.clear();
+                            channel.write(message);
+                            channel.force(false);
+                        }
+                        return 1000L * messageSize;
+                    } finally {
+                        channel.close();
+                    }
+                }
+            });
+            Files.delete(file);
+
+            DurabilityPolicy[] policies = {DurabilityPolicy.none(), DurabilityPolicy.periodic(10),
+                    DurabilityPolicy.groupCommit(0), DurabilityPolicy.groupCommit(100)};
+            for (final DurabilityPolicy policy : policies) {
+                // 组提交每条消息都要等 force()，条数少一些
+                final int count = policy.toString().startsWith("groupCommit") ? 4000 : 400000;
+                bench.run("segment log " + policy, new MicroBench.Body() {
+                    public long run() throws Exception {
+                        final SegmentLog log = new SegmentLog(root.resolve("segments"), policy);
+                        try {
+                            final ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+                            concurrently(appenders, threads, new Callable<Long>() {
+                                public Long call() throws Exception {
+                                    ByteBuffer own = message.duplicate();
+                                    for (int i = 0; i < count / threads; i++) {
+                                        log.append(own);
+                                    }
+                                    return 0L;
+                                }
+                            });
+                            return (long) count * messageSize;
+                        } finally {
+                            log.close();
+                            deleteDirectory(root.resolve("segments"));
+                        }
+                    }
+                });
+            }
+        } finally {
+            appenders.shutdown();
+            deleteDirectory(root);
+        }
+    }
+
+    // 10. 日志文件按行处理：BufferedReader 逐行读，和 MappedLineIndex 建索引（单线程 / 公共线程池）、并行查找
+    @Test
+    public void lineIndex() throws Exception {
+        MicroBench bench = new MicroBench(1, 5);
+        MicroBench.printHeader();
+        final Path file = createLogFile("bench-log.txt", maxSize);
+        final long size = Files.size(file);
+        final ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            bench.run("BufferedReader.readLine " + MicroBench.formatSize(maxSize), new MicroBench.Body() {
+                public long run() throws Exception {
+                    BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+                    try {
+                        while (reader.readLine() != null) {
+                            // 只数行
+                        }
+                        return size;
+                    } finally {
+                        reader.close();
+                    }
+                }
+            });
+            ForkJoinPool[] pools = {single, ForkJoinPool.commonPool()};
+            for (final ForkJoinPool pool : pools) {
+                bench.run("line index " + MicroBench.formatSize(maxSize) + (pool == single ? " 1 thread" : " common pool"),
+                        new MicroBench.Body() {
+                            public long run() throws Exception {
+                                new MappedLineIndex(file, pool, MappedLineIndex.DEFAULT_CHUNK_SIZE).close();
+                                return size;
+                            }
+                        });
+            }
+            final MappedLineIndex index = new MappedLineIndex(file);
+            try {
+                bench.run("grep ERROR " + MicroBench.formatSize(maxSize), new MicroBench.Body() {
+                    public long run() throws Exception {
+                        MicroBench.blackhole += index.grep("ERROR".getBytes()).length;
+                        return size;
+                    }
+                });
+            } finally {
+                index.close();
+            }
+        } finally {
+            single.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    // 一个线程按 messageSize 写 total 个字节，当前线程读完，返回读到的字节数
+    private static long transfer(ExecutorService producer, final WritableByteChannel sink, ReadableByteChannel source,
+                                 final long total, final int messageSize) throws Exception {
+        Future<?> writing = producer.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                ByteBuffer message = ByteBuffer.allocate(messageSize);
+                for (long written = 0; written < total; written += messageSize) {
+                    message.clear();
+                    while (message.hasRemaining()) {
+                        sink.write(message);
+                    }
+                }
+                return null;
+            }
+        });
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long read = 0;
+        while (read < total) {
+            read += source.read(buf);
+            buf.clear();
+        }
+        writing.get();
+        return read;
+    }
+
+    // 同时运行 count 个任务，返回结果之和
+    private static long concurrently(ExecutorService executor, int count, Callable<Long> task) throws Exception {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(executor.submit(task));
+        }
+        long total = 0;
+        for (Future<Long> future : futures) {
+            total += future.get();
+        }
+        return total;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    deleteDirectory(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        Files.delete(directory);
+    }
+
+    private MicroBench iterations(long size) {
+        if (size >= 256L * 1024 * 1024) {
+            return new MicroBench(1, 3);
+        }
+        if (size >= 16L * 1024 * 1024) {
+            return new MicroBench(3, 10);
+        }
+        return new MicroBench(20, 50);
+    }
+
+    // 生成大约 size 字节的日志文件，每行几十到一百多字节，十分之一是 ERROR
+    private Path createLogFile(String name, long size) throws IOException {
+        Path path = dir.resolve(name);
+        Random random = new Random(size);
+        BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.ISO_8859_1);
+        try {
+            StringBuilder line = new StringBuilder();
+            long written = 0;
+            while (written < size) {
+                line.setLength(0);
+                line.append("2026-10-17 12:00:00 ").append(random.nextInt(10) == 0 ? "ERROR" : "INFO")
+                        .append(" id=").append(random.nextLong()).append(' ');
+                for (int i = random.nextInt(120); i > 0; i--) {
+                    line.append((char) ('a' + random.nextInt(26)));
+                }
+                line.append('\n');
+                writer.write(line.toString());
+                written += line.length();
+            }
+        } finally {
+            writer.close();
+        }
+        return path;
+    }
+
+    // 生成指定大小的随机内容文件
+    private Path createFile(String name, long size) throws IOException {
+        Path path = dir.resolve(name);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+        try {
+            byte[] block = new byte[buf.capacity()];
+            new Random(size).nextBytes(block);
+            buf.put(block);
+            long written = 0;
+            while (written < size) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), size - written));
+                while (buf.hasRemaining()) {
+                    written += channel.write(buf);
+                }
+            }
+        } finally {
+            DirectBuffers.unmap(buf);
+            channel.close();
+        }
+        return path;
+    }
+}
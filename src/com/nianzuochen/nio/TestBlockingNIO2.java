@@ -125,4 +125,85 @@ public class TestBlockingNIO2 {
             }
         }
     }
+
+    // 文件传输协议的客户端：断点续传上传 1.jpg，再下载回来保存为 3.jpg
+    @Test
+    public void client2() {
+        FileTransferClient client = null;
+        try {
+            client = new FileTransferClient(new InetSocketAddress("127.0.0.1", 9898));
+
+            // 服务端已经有一部分时只上传剩下的部分
+            System.out.println("服务端已有：" + client.query("1.jpg"));
+            System.out.println("上传后：" + client.resumeUpload(Paths.get("1.jpg"), "1.jpg"));
+
+            // 3.jpg 已经存在时从它的长度处接着下载
+            System.out.println("下载：" + client.download("1.jpg", Paths.get("3.jpg")));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 并行上传：1.jpg 分成 64K 的块，用 4 个连接同时发送，服务端用 server2()
+    @Test
+    public void client3() {
+        FileTransferClient client = null;
+        try {
+            client = new FileTransferClient(new InetSocketAddress("127.0.0.1", 9898));
+            System.out.println("上传后：" + client.parallelUpload(Paths.get("1.jpg"), "4.jpg", 4, 64 * 1024));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 去重上传：1.jpg 上传两次，第二次服务端已经有所有的块，不用发送内容，服务端用 server2()
+    @Test
+    public void client4() {
+        FileTransferClient client = null;
+        try {
+            client = new FileTransferClient(new InetSocketAddress("127.0.0.1", 9898));
+            System.out.println("第一次发送：" + client.dedupUpload(Paths.get("1.jpg"), "5.jpg"));
+            System.out.println("第二次发送：" + client.dedupUpload(Paths.get("1.jpg"), "6.jpg"));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 文件传输协议的服务端，收到的文件放在 upload 目录下，每个连接一个（虚拟）线程，可以同时接收多个客户端
+    @Test
+    public void server2() {
+        FileTransferServer server = new FileTransferServer(Paths.get("upload"), 9898);
+        try {
+            server.start();
+            server.awaitTermination();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
+    }
 }
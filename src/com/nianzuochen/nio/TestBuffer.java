@@ -30,6 +30,52 @@ import org.junit.Test;
  *
  */
 public class TestBuffer {
+    // 组合缓冲区：多个块串成一段数据，跨块读整数、找分隔符、切片，都不复制
+    @Test
+    public void test5() {
+        long outstanding = BufferPool.shared().getBuffersOutstanding();
+        CompositeByteBuf buf = new CompositeByteBuf();
+
+        ByteBuffer first = BufferPool.shared().acquire(6);
+        first.put("ab".getBytes()).putShort((short) 0).put((byte) 0).put((byte) 0);
+        first.flip();
+        buf.addPooled(first);
+        buf.addComponent(ByteBuffer.wrap(new byte[]{0, 42, 'c', 'd', '\n', 'e'}));
+        System.out.println(buf);                        // readable=12, components=2
+
+        System.out.println(buf.getInt(4));              // 42，前两个字节在第一个块中，后两个在第二个块中
+        System.out.println(buf.indexOf((byte) '\n', 0, buf.readableBytes()));  // 10
+
+        CompositeByteBuf line = buf.readSlice(10);      // 和 buf 共用两个块
+        buf.skipBytes(1);
+        System.out.println(line.numComponents());       // 2
+        System.out.println((char) line.getByte(9));     // d
+        System.out.println((char) buf.readByte());      // e
+
+        buf.release();                                  // line 还引用着第一个块，还不会归还
+        System.out.println(BufferPool.shared().getBuffersOutstanding() - outstanding);  // 1
+        line.release();
+        System.out.println(BufferPool.shared().getBuffersOutstanding() - outstanding);  // 0
+    }
+
+    // 直接缓冲区池：借出、归还、复用
+    @Test
+    public void test4() {
+        BufferPool pool = new BufferPool(1024, 1024 * 1024, 8, 64, true);
+
+        ByteBuffer buf = pool.acquire(1000);
+        System.out.println(buf.isDirect());     // true
+        System.out.println(buf.capacity());     // 1024，向上取到最近的一级
+        System.out.println(buf.limit());        // 1000
+        pool.release(buf);
+
+        ByteBuffer buf2 = pool.acquire(1024);
+        System.out.println(buf2 == buf);        // true，同一个线程归还后再借出的是同一个
+        pool.release(buf2);
+
+        System.out.println(pool);   // hits=1, misses=1, buffersOutstanding=0
+    }
+
     @Test
     public void test3() {
         // 分配直接缓冲区
@@ -6,16 +6,21 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *  一、通道（Channel）：用于源节点和目标节点的连接。在 Java NIO 中负责缓冲区中数据的传输。
@@ -51,6 +56,203 @@ import java.util.Set;
  *      解码：字节数组 -> 字符串
  */
 public class TestChannel {
+    // 12.给文本文件建行索引，按行号直接读任意一行，并行查找
+    @Test
+    public void test12() {
+        MappedLineIndex index = null;
+        try {
+            index = new MappedLineIndex(Paths.get("1.txt"));
+            System.out.println(index);
+            long last = index.getLineCount() - 1;
+            if (last >= 0) {
+                // 不用先读前面的行
+                System.out.println(last + "：" + index.readLine(last));
+            }
+            System.out.println("包含 a 的行：" + Arrays.toString(index.grep("a".getBytes())));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 11.批量写记录（聚集写入）、读记录（分散读取），记录文件写在临时目录中，结束后删除
+    @Test
+    public void test11() {
+        FileChannel outChannel = null;
+        FileChannel inChannel = null;
+        RecordReader reader = null;
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("records");
+            Path records = dir.resolve("records.dat");
+            outChannel = FileChannel.open(records, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            RecordWriter writer = new RecordWriter(outChannel);
+            for (int i = 0; i < 10000; i++) {
+                writer.write(i % 3, ByteBuffer.wrap(("record-" + i).getBytes()));
+            }
+            writer.flush();
+            // 10000 条记录只调用了 20 次 write(ByteBuffer[])
+            System.out.println("记录：" + writer.getRecords() + "，写入次数：" + writer.getWrites());
+
+            inChannel = FileChannel.open(records, StandardOpenOption.READ);
+            reader = new RecordReader(inChannel);
+            RecordReader.Record record;
+            int count = 0;
+            while ((record = reader.next()) != null) {
+                if (count++ < 3) {
+                    System.out.println(record.getType() + " " + Charset.defaultCharset().decode(record.getPayload()));
+                }
+            }
+            System.out.println("读取：" + count);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+
+            if (outChannel != null) {
+                try {
+                    outChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (dir != null) {
+                try {
+                    Files.deleteIfExists(dir.resolve("records.dat"));
+                    Files.delete(dir);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 10.流式转换文件编码，UTF-8 -> GBK -> UTF-8，GBK 文件写在临时目录中，结束后删除
+    @Test
+    public void test10() {
+        FileChannel inChannel = null;
+        FileChannel outChannel = null;
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("transcode");
+            Path gbk = dir.resolve("3.txt");
+            ChannelTranscoder toGbk = new ChannelTranscoder(Charset.forName("UTF-8"), Charset.forName("GBK"), 1024);
+            inChannel = FileChannel.open(Paths.get("1.txt"), StandardOpenOption.READ);
+            outChannel = FileChannel.open(gbk, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            System.out.println(inChannel.size() + " -> " + toGbk.transcode(inChannel, outChannel));
+            inChannel.close();
+            outChannel.close();
+
+            // 转换回 UTF-8 打印出来
+            ChannelTranscoder toUtf8 = new ChannelTranscoder(Charset.forName("GBK"), Charset.forName("UTF-8"));
+            inChannel = FileChannel.open(gbk, StandardOpenOption.READ);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            toUtf8.transcode(inChannel, Channels.newChannel(bos));
+            System.out.println(new String(bos.toByteArray(), "UTF-8"));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (outChannel != null) {
+                try {
+                    outChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (dir != null) {
+                try {
+                    Files.deleteIfExists(dir.resolve("3.txt"));
+                    Files.delete(dir);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 9.分段并行复制，打印每一段的进度
+    @Test
+    public void test9() {
+        try {
+            ParallelFileCopier copier = new ParallelFileCopier(ForkJoinPool.commonPool(), CopyStrategy.DIRECT,
+                    32 * 1024, 8 * 1024, 3);
+            CopyResult result = copier.copy(Paths.get("1.jpg"), Paths.get("2.jpg"), new ParallelFileCopier.ProgressListener() {
+                @Override
+                public void onProgress(long rangeStart, long rangeLength, long rangeCopied, long totalCopied) {
+                    if (rangeCopied == rangeLength) {
+                        System.out.println(Thread.currentThread().getName() + " [" + rangeStart + ", "
+                                + (rangeStart + rangeLength) + ") 完成，总计：" + totalCopied);
+                    }
+                }
+            });
+            System.out.println(result);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // 8.根据文件大小和目标类型自动选择复制方式
+    @Test
+    public void test8() {
+        try {
+            FileCopier copier = new FileCopier();
+            CopyResult result = copier.copy(Paths.get("1.jpg"), Paths.get("2.jpg"));
+            System.out.println(result);
+
+            // 也可以指定复制方式
+            for (CopyStrategy strategy : CopyStrategy.values()) {
+                System.out.println(copier.copy(Paths.get("1.jpg"), Paths.get("3.jpg"), strategy));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // 7.分段内存映射复制（适用于超过 2G 的大文件，映射缓冲区之间直接复制，不经过堆）
+    @Test
+    public void test7() {
+        long start = System.currentTimeMillis();
+        try {
+            // 窗口设置得比文件小，演示分段映射
+            MappedFileCopier copier = new MappedFileCopier(64 * 1024, false);
+            long size = copier.copy(Paths.get("1.jpg"), Paths.get("3.jpg"));
+            System.out.println("复制：" + size);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("耗费：" + (end - start));
+    }
+
     // 6.编码与解码
     @Test
     public void test6() {
@@ -164,9 +366,20 @@ public class TestChannel {
                 outChannel = FileChannel.open(Paths.get("2.jpg"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
 
                 // inChannel.transferTo(0, inChannel.size(), outChannel);
-                outChannel.transferFrom(inChannel, 0, inChannel.size());
+                // transferFrom() 不保证一次传输完，需要循环
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long n = outChannel.transferFrom(inChannel, position, size - position);
+                    if (n <= 0) {
+                        // 源文件比 size 短（被截短了），再循环也传不出数据
+                        break;
+                    }
+                    position += n;
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
+            } finally {
                 if (inChannel != null) {
                     try {
                         inChannel.close();
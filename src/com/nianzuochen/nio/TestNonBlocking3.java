@@ -5,6 +5,9 @@ import org.junit.Test;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
 
 // 管道 pipe
 public class TestNonBlocking3 {
@@ -52,4 +55,176 @@ public class TestNonBlocking3 {
             }
         }
     }
+
+    // 环形缓冲区通道：用法和 Pipe 一样，发送和接收放在两个线程中，数据不经过内核
+    @Test
+    public void test2() throws Exception {
+        final RingByteChannel channel = new RingByteChannel(1024);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(1024);
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        buf.put(("通过环形缓冲区发送数据 " + i + "\n").getBytes());
+                        buf.flip();
+                        channel.write(buf);
+                        buf.clear();
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        // 读到 -1 说明生产者已经关闭，而且数据都读完了
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        int len;
+        while ((len = channel.read(buf)) != -1) {
+            System.out.print(new String(buf.array(), 0, len));
+            buf.clear();
+        }
+        producer.join();
+    }
+
+    // 选择器线程作为消费者：多个生产者写，只有选择器线程将要阻塞时才通过 Pipe 唤醒它
+    @Test
+    public void test3() throws Exception {
+        final RingByteChannel channel = new RingByteChannel(64 * 1024, true, WaitStrategy.YIELD);
+        Selector selector = Selector.open();
+        Pipe.SourceChannel wakeup = channel.wakeupSource();
+        wakeup.register(selector, SelectionKey.OP_READ);
+
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            final int id = i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer message = ByteBuffer.allocate(8);
+                    try {
+                        for (int j = 0; j < 100000; j++) {
+                            message.clear();
+                            message.putInt(id).putInt(j).flip();
+                            // 每次 write() 是一个整体，不会和别的生产者交错
+                            channel.write(message);
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        channel.configureBlocking(false);
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        int[] next = new int[producers.length];
+        long messages = 0;
+        long selects = 0;
+        boolean done = false;
+        try {
+            while (!done) {
+                if (channel.prepareSelect()) {
+                    selector.select();
+                    selects++;
+                } else {
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+
+                int n;
+                while ((n = channel.read(buf)) != 0) {
+                    if (n == -1) {
+                        done = true;
+                        break;
+                    }
+                    buf.flip();
+                    while (buf.remaining() >= 8) {
+                        int id = buf.getInt();
+                        int seq = buf.getInt();
+                        if (seq != next[id]++) {
+                            throw new IllegalStateException("producer " + id + ": expected " + (next[id] - 1) + ", got " + seq);
+                        }
+                        messages++;
+                    }
+                    buf.compact();
+                }
+                if (messages == 4 * 100000L) {
+                    channel.close();
+                }
+            }
+        } finally {
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            wakeup.close();
+            selector.close();
+        }
+        System.out.println("messages: " + messages + ", blocking selects: " + selects);
+    }
+
+    // 三级流水线：解码（文本 -> long）、处理（平方）、编码（long -> 文本），分别用 Pipe 和环形缓冲区连接
+    @Test
+    public void test4() throws Exception {
+        for (Pipeline.LinkType linkType : Pipeline.LinkType.values()) {
+            final AtomicLong sum = new AtomicLong();
+            Pipeline pipeline = new Pipeline(linkType)
+                    .addStage("decode", new Pipeline.Stage() {
+                        private final ByteBuffer value = ByteBuffer.allocate(8);
+
+                        @Override
+                        public void process(ByteBuffer frame, Pipeline.Emitter out) throws IOException {
+                            long n = 0;
+                            while (frame.hasRemaining()) {
+                                n = n * 10 + (frame.get() - '0');
+                            }
+                            value.clear();
+                            value.putLong(n).flip();
+                            out.emit(value);
+                        }
+                    })
+                    .addStage("square", new Pipeline.Stage() {
+                        private final ByteBuffer value = ByteBuffer.allocate(8);
+
+                        @Override
+                        public void process(ByteBuffer frame, Pipeline.Emitter out) throws IOException {
+                            long n = frame.getLong();
+                            value.clear();
+                            value.putLong(n * n).flip();
+                            out.emit(value);
+                        }
+                    })
+                    .addStage("encode", new Pipeline.Stage() {
+                        @Override
+                        public void process(ByteBuffer frame, Pipeline.Emitter out) throws IOException {
+                            out.emit(ByteBuffer.wrap(Long.toString(frame.getLong()).getBytes()));
+                        }
+                    })
+                    .setOutput(new Pipeline.Emitter() {
+                        @Override
+                        public void emit(ByteBuffer frame) {
+                            sum.addAndGet(Long.parseLong(new String(frame.array(), frame.position(), frame.remaining())));
+                        }
+                    });
+            pipeline.start();
+            for (int i = 0; i < 1000000; i++) {
+                pipeline.submit(ByteBuffer.wrap(Integer.toString(i % 1000).getBytes()));
+            }
+            pipeline.close();
+            pipeline.awaitTermination();
+
+            System.out.println(linkType + " sum: " + sum.get());
+            for (Pipeline.StageMetrics metrics : pipeline.getMetrics()) {
+                System.out.println(metrics);
+            }
+        }
+    }
 }
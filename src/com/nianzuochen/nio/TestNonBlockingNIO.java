@@ -2,16 +2,26 @@ package com.nianzuochen.nio;
 
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 // 想要 IDEA 接收控制台的输入 需要在 IDEA 的安装文件 idea64.exe.vmoptions 最后添加 -Deditable.java.test.console=true
 /**
@@ -37,6 +47,7 @@ public class TestNonBlockingNIO {
     @Test
     public void client() {
         SocketChannel sChannel = null;
+        Selector selector = null;
         try {
             // 1. 获取通道
             sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", 9898));
@@ -47,24 +58,43 @@ public class TestNonBlockingNIO {
             // 3. 分配指定大小的缓冲区
             ByteBuffer buf = ByteBuffer.allocate(1024);
 
+            // 非阻塞通道的 write() 不一定能写完，发送缓冲区满时返回 0，需要用选择器等到“写就绪”再接着写
+            selector = Selector.open();
+            SelectionKey key = sChannel.register(selector, 0);
+
             // 4. 发送数据给服务器，发送时间
 //            buf.put(new Date().toString().getBytes());
 //            buf.flip();
 //            sChannel.write(buf);
 //            buf.clear();
-            // 4.发送数据给服务器，发送用户输入的信息
+            // 4.发送数据给服务器，发送用户输入的信息，每条消息以 '\n' 结尾，服务端按行分帧
             Scanner scan = new Scanner(System.in);
             while(scan.hasNext()) {
                 String str = scan.next();
-                buf.put((new Date().toString() + "\n" + str).getBytes());
+                buf.put((new Date().toString() + " " + str + "\n").getBytes());
                 buf.flip();
-                sChannel.write(buf);
+                while (buf.hasRemaining()) {
+                    if (sChannel.write(buf) == 0) {
+                        // 只在等待时关心 OP_WRITE，否则 select() 会一直返回
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        selector.select();
+                        selector.selectedKeys().clear();
+                        key.interestOps(0);
+                    }
+                }
                 buf.clear();
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             if (sChannel != null) {
                 try {
                     sChannel.close();
@@ -93,11 +123,22 @@ public class TestNonBlockingNIO {
             // 4. 获取一个选择器
             Selector selector = Selector.open();
 
+            // 按行分帧，一行最长 1023 字节，加上 '\n' 正好放满连接的缓冲区
+            FrameDecoder decoder = new DelimiterFrameDecoder((byte) '\n', 1023);
+
             // 5.将通道注册到选择器上，并且制定监听 接收 事件
             ssChannel.register(selector, SelectionKey.OP_ACCEPT);
 
+            // 每一轮的等待时间、处理时间、读到的字节数，可以用 jconsole 在 com.nianzuochen.nio 下查看
+            EventLoopMetrics metrics = new EventLoopMetrics("server");
+            metrics.register();
+            long selectStart = System.nanoTime();
+
             // 6. 轮训式地获取选择器上已经“准备就绪”的事件
             while (selector.select() > 0) { // 表示至少有 1 个准备就绪
+                long selectEnd = System.nanoTime();
+                int ready = selector.selectedKeys().size();
+
                 // 7.  获取当前选择器中所有注册的“选择键（已就绪的监听事件）”
                 Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 
@@ -109,33 +150,301 @@ public class TestNonBlockingNIO {
                     if (sk.isAcceptable()) {
                         // 10. 若“接收就绪”，获取客户端连接
                         SocketChannel sChannel = ssChannel.accept();
+                        metrics.addAccepts(1);
 
                         // 11. 切换成非阻塞模式
                         sChannel.configureBlocking(false);
 
-                        // 12. 将该通道注册选择器
-                        sChannel.register(selector, SelectionKey.OP_READ);
+                        // 12. 将该通道注册选择器，每个连接自己的缓冲区作为附件，用于累积不完整的消息
+                        sChannel.register(selector, SelectionKey.OP_READ, BufferPool.shared().acquire(1024));
                     } else if (sk.isReadable()) {
                         // 13. 获取当前选择器上“读就绪”的通道
                         SocketChannel sChannel = (SocketChannel)sk.channel();
 
-                        // 14. 读取数据
-                        ByteBuffer buf = ByteBuffer.allocate(1024);
-                        int len = 0;
-                        while((len = sChannel.read(buf)) != -1) {
-                            buf.flip();
-                            System.out.println(new String(buf.array(), 0, len));
-                            buf.clear();
+                        // 14. 读取数据到这个连接的缓冲区
+                        // 非阻塞通道没有数据时返回 0，不能用 != -1 判断，否则会一直空转；返回 0 就回到选择器等待
+                        ByteBuffer buf = (ByteBuffer) sk.attachment();
+                        int len;
+                        try {
+                            while ((len = sChannel.read(buf)) > 0) {
+                                metrics.addBytesRead(len);
+                                // 15. 取出所有完整的消息，剩下不完整的留在缓冲区中等下次读取
+                                buf.flip();
+                                ByteBuffer frame;
+                                while ((frame = decoder.decode(buf)) != null) {
+                                    System.out.println(Charset.defaultCharset().decode(frame));
+                                }
+                                buf.compact();
+                            }
+                        } catch (IOException ex) {
+                            // 连接异常或者一行超过最大长度
+                            ex.printStackTrace();
+                            len = -1;
+                        }
+
+                        // 16. 客户端关闭，取消注册并归还缓冲区
+                        if (len == -1) {
+                            sk.cancel();
+                            sChannel.close();
+                            BufferPool.shared().release(buf);
                         }
                     }
 
-                    // 15. 取消选择键 SelectionKey，否则一直有效
+                    // 17. 取消选择键 SelectionKey，否则一直有效
                     it.remove();
                 }
+
+                long end = System.nanoTime();
+                metrics.recordIteration(selectStart, selectEnd, end, ready);
+                selectStart = end;
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
+
+    // 多 Reactor 服务端：一个 boss 接收连接，每个 CPU 一个 worker 负责读写，可以用上面的 client() 连接
+    @Test
+    public void server2() {
+        try {
+            MultiReactorServer server = new MultiReactorServer(new InetSocketAddress(9898),
+                    Runtime.getRuntime().availableProcessors(), MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+                @Override
+                public void onOpen(Connection connection) {
+                    System.out.println(Thread.currentThread().getName() + " 连接：" + connection.getChannel());
+                }
+
+                @Override
+                public void onMessage(Connection connection, ByteBuffer message) {
+                    System.out.println(Thread.currentThread().getName() + " " + Charset.defaultCharset().decode(message));
+                }
+
+                @Override
+                public void onClose(Connection connection) {
+                    System.out.println(Thread.currentThread().getName() + " 断开：" + connection.getChannel());
+                }
+            }, new DelimiterFrameDecoder((byte) '\n', 1024));
+            server.start();
+            server.awaitTermination();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // 合并发送 + 流水线：回显服务端，客户端不等响应连续发送，统计每次写出合并了几条消息
+    @Test
+    public void pipelinedClient() throws Exception {
+        MultiReactorServer server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0),
+                2, MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+            @Override
+            public void onOpen(Connection connection) {
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                ByteBuffer length = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE);
+                length.putInt(0, message.remaining());
+                connection.write(length);
+                connection.write(message);
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+            }
+        }, new LengthFieldFrameDecoder(1024));
+        server.start();
+
+        PipelinedClient client = new PipelinedClient(server.getLocalAddress());
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(32);
+            CompletableFuture<ByteBuffer> last = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                buf.clear();
+                buf.putInt(0, i);
+                last = client.send(buf);
+            }
+            // 响应按顺序到达，最后一个完成时前面的都已经完成
+            System.out.println("最后一个响应：" + last.get().getInt(0));
+            System.out.println("耗时：" + (System.nanoTime() - start) / 1000000 + " ms，消息数：" + client.getMessages()
+                    + "，写出次数：" + client.getFlushes());
+        } finally {
+            client.close();
+            server.shutdown();
+            server.awaitTermination();
+        }
+    }
+
+    // 事件循环的统计：4 个流水线客户端压测回显服务端，然后打印每个循环的快照，再通过 JMX 读一遍
+    @Test
+    public void metrics() throws Exception {
+        MultiReactorServer server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0),
+                2, MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+            @Override
+            public void onOpen(Connection connection) {
+            }
+
+            @Override
+            public void onMessage(Connection connection, ByteBuffer message) {
+                ByteBuffer length = ByteBuffer.allocate(LengthFieldFrameDecoder.LENGTH_FIELD_SIZE);
+                length.putInt(0, message.remaining());
+                connection.write(length);
+                connection.write(message);
+            }
+
+            @Override
+            public void onClose(Connection connection) {
+            }
+        }, new LengthFieldFrameDecoder(1024));
+        server.start();
+
+        PipelinedClient[] clients = new PipelinedClient[4];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new PipelinedClient(server.getLocalAddress());
+            }
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            CompletableFuture<ByteBuffer> last = null;
+            for (int i = 0; i < 400000; i++) {
+                buf.clear();
+                last = clients[i % clients.length].send(buf);
+            }
+            last.get();
+
+            System.out.println(server.getBossMetrics().snapshot());
+            for (EventLoop worker : server.getWorkers()) {
+                System.out.println(worker.getMetrics().snapshot());
+            }
+
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : mbeans.queryNames(new ObjectName(EventLoopMetrics.DOMAIN + ":type=EventLoop,*"), null)) {
+                System.out.println(name + " BusyRatio=" + mbeans.getAttribute(name, "BusyRatio")
+                        + " ProcessingNanosP99=" + mbeans.getAttribute(name, "ProcessingNanosP99"));
+            }
+        } finally {
+            for (PipelinedClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            server.shutdown();
+            server.awaitTermination();
+        }
+    }
+
+    // 收到的每条消息都追加到临时目录的日志中（每 10ms force 一次），另一个线程跟随日志读，结束后删除目录
+    @Test
+    public void persist() throws Exception {
+        final Path dir = Files.createTempDirectory("messages");
+        try {
+            final SegmentLog log = new SegmentLog(dir, DurabilityPolicy.periodic(10));
+            final long first = log.getNextOffset();
+            MultiReactorServer server = new MultiReactorServer(new InetSocketAddress("127.0.0.1", 0),
+                    2, MultiReactorServer.Balance.ROUND_ROBIN, new ConnectionHandler() {
+                @Override
+                public void onOpen(Connection connection) {
+                }
+
+                @Override
+                public void onMessage(Connection connection, ByteBuffer message) {
+                    try {
+                        log.append(message);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        connection.close();
+                    }
+                }
+
+                @Override
+                public void onClose(Connection connection) {
+                }
+            }, new LengthFieldFrameDecoder(64 * 1024));
+            server.start();
+
+            final int clients = 4;
+            final int messages = 50000;
+            final int messageSize = 1024;
+            final SegmentLog.Reader reader = log.reader(first);
+            final AtomicLong tailed = new AtomicLong();
+            Thread tail = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (reader.poll(1, TimeUnit.SECONDS) != null) {
+                            tailed.incrementAndGet();
+                        }
+                    } catch (InterruptedException ex) {
+                        // 结束
+                    }
+                }
+            }, "tail");
+            tail.start();
+
+            long start = System.nanoTime();
+            SocketChannel[] channels = new SocketChannel[clients];
+            try {
+                for (int i = 0; i < clients; i++) {
+                    channels[i] = SocketChannel.open(server.getLocalAddress());
+                }
+                // 每次写 64 条
+                ByteBuffer batch = ByteBuffer.allocateDirect(64 * (LengthFieldFrameDecoder.LENGTH_FIELD_SIZE + messageSize));
+                ByteBuffer message = ByteBuffer.allocate(messageSize);
+                while (batch.hasRemaining()) {
+                    message.clear();
+                    LengthFieldFrameDecoder.encode(message, batch);
+                }
+                for (int i = 0; i < messages / 64; i++) {
+                    for (SocketChannel channel : channels) {
+                        batch.clear();
+                        FileTransferProtocol.writeFully(channel, batch);
+                    }
+                }
+                long expected = first + (long) clients * (messages / 64) * 64;
+                while (log.getNextOffset() < expected) {
+                    Thread.sleep(1);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("persisted %d messages, %.0f messages/s, %.1f MB/s, %d segments%n",
+                        expected - first, (expected - first) / seconds, (expected - first) * messageSize / seconds / 1e6,
+                        log.getSegmentCount());
+                log.flush();
+                System.out.println("durable up to " + log.getDurableOffset() + ", tail reader at " + reader.getOffset());
+            } finally {
+                for (SocketChannel channel : channels) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                }
+                server.shutdown();
+                server.awaitTermination();
+                tail.join();
+                log.close();
+                System.out.println("tail read " + tailed.get() + " messages");
+            }
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    deleteDirectory(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        Files.delete(directory);
+    }
 }
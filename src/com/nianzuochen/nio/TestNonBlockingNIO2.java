@@ -4,13 +4,16 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 // UDP DatagramChannel
@@ -20,22 +23,26 @@ public class TestNonBlockingNIO2 {
     @Test
     public void send() {
         DatagramChannel dc = null;
+        ByteBuffer buf = BufferPool.shared().acquire(1024);
         try {
             dc = DatagramChannel.open();
             dc.configureBlocking(false);
-            ByteBuffer buf = ByteBuffer.allocate(1024);
+            // 只 connect 一次，之后用 write()，不用每次都新建地址对象、检查地址
+            dc.connect(new InetSocketAddress("127.0.0.1", 9898));
             Scanner sc = new Scanner(System.in);
 
             while(sc.hasNext()) {
                 String str =sc.next();
                 buf.put((new Date().toString() + "\n" + str).getBytes());
                 buf.flip();
-                dc.send(buf, new InetSocketAddress("127.0.0.1", 9898));
+                dc.write(buf);
                 buf.clear();
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
+            BufferPool.shared().release(buf);
+
             if (dc != null) {
                 try {
                     dc.close();
@@ -47,10 +54,104 @@ public class TestNonBlockingNIO2 {
 
     }
 
+    // 合并、限速发送：20000 条小消息合并成 1472 字节的数据报，每秒最多 2000 个数据报，接收端拆开后计数
+    @Test
+    public void send2() throws Exception {
+        final AtomicLong messages = new AtomicLong();
+        UdpIngestor ingestor = new UdpIngestor(new InetSocketAddress("127.0.0.1", 0), 1, 1024, 1500, 16,
+                new UdpIngestor.DatagramHandler() {
+                    @Override
+                    public void onDatagram(SocketAddress sender, ByteBuffer datagram) {
+                        try {
+                            PacedDatagramSender.unpack(datagram, new PacedDatagramSender.MessageHandler() {
+                                @Override
+                                public void onMessage(ByteBuffer message) {
+                                    messages.incrementAndGet();
+                                }
+                            });
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+        ingestor.start();
+
+        PacedDatagramSender sender = new PacedDatagramSender(ingestor.getLocalAddress(), 2000);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 20000; i++) {
+                sender.send(ByteBuffer.wrap(("message " + i).getBytes()));
+            }
+        } finally {
+            sender.close();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Thread.sleep(100);
+        ingestor.shutdown();
+        ingestor.awaitTermination();
+        System.out.println("messages: " + sender.getMessages() + ", packets: " + sender.getPackets()
+                + ", elapsed: " + elapsed / 1000000 + " ms, received: " + messages.get()
+                + " messages in " + ingestor.getReceived() + " packets");
+    }
+
+    // 大消息分片发送：100 条 300KB 的消息，每秒最多 50000 个分片，接收端重组后检查内容
+    @Test
+    public void send3() throws Exception {
+        final int size = 300 * 1024;
+        final AtomicLong corrupted = new AtomicLong();
+        final DatagramReassembler reassembler = new DatagramReassembler(new DatagramReassembler.MessageHandler() {
+            @Override
+            public void onMessage(SocketAddress sender, int id, ByteBuffer message) {
+                // 每条消息的内容都是它的 id
+                if (message.remaining() != size || message.get(0) != (byte) id || message.get(size - 1) != (byte) id) {
+                    corrupted.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onLost(SocketAddress sender, int id, int receivedFragments, int fragmentCount) {
+                System.out.println("lost message " + id + ": " + receivedFragments + "/" + fragmentCount);
+            }
+        });
+        UdpIngestor ingestor = new UdpIngestor(new InetSocketAddress("127.0.0.1", 0), 1, 4096, 1500, 64, reassembler);
+        ingestor.start();
+
+        FragmentingDatagramSender sender = new FragmentingDatagramSender(ingestor.getLocalAddress(), 50000);
+        ByteBuffer message = ByteBuffer.allocateDirect(size);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 100; i++) {
+                message.clear();
+                while (message.hasRemaining()) {
+                    message.put((byte) i);
+                }
+                message.flip();
+                sender.send(message);
+            }
+        } finally {
+            sender.close();
+            DirectBuffers.unmap(message);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Thread.sleep(100);
+        ingestor.shutdown();
+        ingestor.awaitTermination();
+        reassembler.evictExpired();
+        System.out.println("messages: " + sender.getMessages() + ", fragments: " + sender.getFragments()
+                + ", elapsed: " + elapsed / 1000000 + " ms, completed: " + reassembler.getCompleted()
+                + ", corrupted: " + corrupted.get() + ", lost: " + reassembler.getLost()
+                + ", pending: " + reassembler.getPending());
+        reassembler.clear();
+    }
+
     // 接收端
     @Test
     public void receive() {
         DatagramChannel dc = null;
+        // 整个接收过程复用一个从池中借来的缓冲区
+        ByteBuffer buf = BufferPool.shared().acquire(1024);
         try {
             dc = DatagramChannel.open();
             dc.configureBlocking(false);
@@ -65,21 +166,24 @@ public class TestNonBlockingNIO2 {
 
                 while (it.hasNext()) {
                     SelectionKey sk = it.next();
+                    // 每个选择键处理后都要移除，否则下次 select() 时还在已选择集合中
+                    it.remove();
                     if (sk.isReadable()) {
-                        ByteBuffer buf = ByteBuffer.allocate(1024);
-
-                        dc.receive(buf);
-                        buf.flip();
-                        System.out.println(new String(buf.array(), 0, buf.limit()));
-                        buf.clear();
+                        // 一次读就绪可能已经到了很多个数据报，一直接收到返回 null，而不是每个数据报唤醒一次
+                        while (dc.receive(buf) != null) {
+                            buf.flip();
+                            System.out.println(Charset.defaultCharset().decode(buf));
+                            buf.clear();
+                        }
                     }
                 }
-                it.remove();
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
+            BufferPool.shared().release(buf);
+
             if (dc != null) {
                 try {
                     dc.close();
@@ -89,4 +193,25 @@ public class TestNonBlockingNIO2 {
             }
         }
     }
+
+    // 高速率接收：接收线程只收包并复制到 worker 的环形缓冲区，解码在 worker 线程中，可以用上面的 send() 发送
+    @Test
+    public void receive2() {
+        UdpIngestor ingestor = new UdpIngestor(new InetSocketAddress(9898), 2, 4096, 1500, 64,
+                new UdpIngestor.DatagramHandler() {
+                    @Override
+                    public void onDatagram(SocketAddress sender, ByteBuffer datagram) {
+                        System.out.println(Thread.currentThread().getName() + " " + sender + " "
+                                + Charset.defaultCharset().decode(datagram));
+                    }
+                });
+        try {
+            ingestor.start();
+            ingestor.awaitTermination();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
+    }
 }
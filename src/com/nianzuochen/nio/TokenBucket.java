@@ -0,0 +1,75 @@
+package com.nianzuochen.nio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 令牌桶限速：每秒产生 rate 个令牌，最多攒 capacity 个（允许的突发）
+ *
+ * 一、令牌不够时可以先欠着（令牌数为负），调用者等到还清为止，后面的调用者排在它后面，
+ *      这样每次只需要一次计算，不用循环检查。
+ *
+ * 二、parkNanos 会多睡几十微秒，速率高、桶又小时，多睡的时间里产生的令牌超过容量就浪费了，实际速率达不到。
+ *      所以只 park 到截止时间前 SPIN_NANOS，剩下的时间 yield 等待。
+ */
+public class TokenBucket {
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final double nanosPerToken;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    public TokenBucket(double rate, double capacity) {
+        if (rate <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("rate: " + rate + ", capacity: " + capacity);
+        }
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * 取 n 个令牌，不够时等待
+     */
+    public void acquire(int n) {
+        long wait = reserve(n);
+        if (wait <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0) {
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * 令牌够时取 n 个令牌，不够时不等待
+     */
+    public synchronized boolean tryAcquire(int n) {
+        refill(System.nanoTime());
+        if (tokens < n) {
+            return false;
+        }
+        tokens -= n;
+        return true;
+    }
+
+    // 取 n 个令牌，返回需要等待的纳秒数
+    private synchronized long reserve(int n) {
+        refill(System.nanoTime());
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - last) / nanosPerToken);
+        last = now;
+    }
+}
@@ -0,0 +1,358 @@
+package com.nianzuochen.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 高速率的 UDP 接收
+ *
+ * 一、TestNonBlockingNIO2.receive 每次读就绪只 receive() 一个数据报，每秒几十万个包时，
+ *      每个包一次 select() 唤醒，来不及处理的包在 socket 接收缓冲区满了之后被内核丢掉。
+ *      这里一次读就绪一直 receive() 到返回 null，接收缓冲区清空了才回到选择器。
+ *
+ * 二、接收线程只负责收包：receive() 到一个复用的直接缓冲区，再复制到某个 worker 的环形缓冲区中，
+ *      解码和业务处理都在 worker 线程中，接收线程不分配任何对象。
+ *
+ * 三、每个 worker 一个单生产者单消费者（SPSC）的环形缓冲区，槽位是预先分配的一整块直接内存。
+ *      生产者和消费者各自只写自己的序号，用 lazySet 发布（只需要保证写的顺序，不需要 volatile 写的全屏障），不用锁。
+ *      接收线程每攒够 batchSize 个包发布一次，然后换下一个 worker（轮流），worker 一次处理一批。
+ *
+ * 四、计数
+ *      dropped     worker 处理不过来、环形缓冲区满了丢掉的包
+ *      overruns    比槽位大的包（被截断），丢掉
+ *      接收线程每次唤醒的等待时间、处理时间、收到的字节数记录在 EventLoopMetrics 中，启动时注册到 JMX
+ */
+public class UdpIngestor {
+    public interface DatagramHandler {
+        /**
+         * 在 worker 线程中调用
+         *
+         * @param datagram 环形缓冲区中的槽位，只在回调期间有效
+         */
+        void onDatagram(SocketAddress sender, ByteBuffer datagram);
+    }
+
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // worker 空闲时先自旋，再 yield，最后 park
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final SocketAddress address;
+    private final DatagramHandler handler;
+    private final int slotSize;
+    private final int batchSize;
+    private final Ring[] rings;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong wakeups = new AtomicLong();
+    private final EventLoopMetrics metrics = new EventLoopMetrics("udp-receiver");
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread receiver;
+    private Thread[] workers;
+    private volatile boolean running;
+    // 接收线程已经退出，worker 处理完剩下的包就退出
+    private volatile boolean receiverDone;
+
+    /**
+     * @param workers   worker 线程数
+     * @param ringSlots 每个 worker 的环形缓冲区的槽位数，必须是 2 的幂
+     * @param slotSize  每个槽位的大小，也是能接收的最大数据报
+     * @param batchSize 每次交给一个 worker 的包数
+     */
+    public UdpIngestor(SocketAddress address, int workers, int ringSlots, int slotSize, int batchSize,
+                       DatagramHandler handler) {
+        if (workers <= 0 || Integer.bitCount(ringSlots) != 1 || slotSize <= 0 || batchSize <= 0 || batchSize > ringSlots) {
+            throw new IllegalArgumentException("workers: " + workers + ", ringSlots: " + ringSlots
+                    + ", slotSize: " + slotSize + ", batchSize: " + batchSize);
+        }
+        this.address = address;
+        this.handler = handler;
+        this.slotSize = slotSize;
+        this.batchSize = batchSize;
+        this.rings = new Ring[workers];
+        for (int i = 0; i < workers; i++) {
+            rings[i] = new Ring(ringSlots, slotSize);
+        }
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, DEFAULT_RECEIVE_BUFFER_SIZE);
+        channel.configureBlocking(false);
+        channel.bind(address);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        metrics.register();
+        running = true;
+        workers = new Thread[rings.length];
+        for (int i = 0; i < rings.length; i++) {
+            final Ring ring = rings[i];
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume(ring);
+                }
+            }, "udp-worker-" + i);
+            workers[i].start();
+        }
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, "udp-receiver");
+        receiver.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // 等待所有线程退出，已经放进环形缓冲区的包会先处理完
+    public void awaitTermination() throws InterruptedException {
+        if (receiver != null) {
+            receiver.join();
+        }
+        if (workers != null) {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    // 交给 worker 的包数
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    // 环形缓冲区满了丢掉的包数
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // 比槽位大被丢掉的包数
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    // 读就绪的次数，received / wakeups 就是平均每次唤醒收到几个包
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    public EventLoopMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void receiveLoop() {
+        // 比槽位大一个字节，收满了说明数据报被截断了
+        ByteBuffer scratch = ByteBuffer.allocateDirect(slotSize + 1);
+        int next = 0;
+        try {
+            while (running) {
+                long selectStart = System.nanoTime();
+                selector.select();
+                long selectEnd = System.nanoTime();
+                int ready = selector.selectedKeys().size();
+                selector.selectedKeys().clear();
+                if (!running) {
+                    break;
+                }
+                wakeups.lazySet(wakeups.get() + 1);
+
+                long receivedCount = 0;
+                long byteCount = 0;
+                long droppedCount = 0;
+                long overrunCount = 0;
+                Ring ring = rings[next];
+                int batch = 0;
+
+                SocketAddress sender;
+                while ((sender = channel.receive(scratch)) != null) {
+                    scratch.flip();
+                    int length = scratch.remaining();
+                    if (length > slotSize) {
+                        overrunCount++;
+                    } else if (ring.offer(sender, scratch)) {
+                        receivedCount++;
+                        byteCount += length;
+                        if (++batch == batchSize) {
+                            // 这一批交给 worker，换下一个
+                            ring.publish();
+                            batch = 0;
+                            next = (next + 1) % rings.length;
+                            ring = rings[next];
+                        }
+                    } else {
+                        droppedCount++;
+                    }
+                    scratch.clear();
+                }
+                if (batch > 0) {
+                    ring.publish();
+                    next = (next + 1) % rings.length;
+                }
+
+                // 只有接收线程写这些计数，不需要原子的加法
+                received.lazySet(received.get() + receivedCount);
+                bytes.lazySet(bytes.get() + byteCount);
+                dropped.lazySet(dropped.get() + droppedCount);
+                overruns.lazySet(overruns.get() + overrunCount);
+                metrics.addBytesRead(byteCount);
+                metrics.recordIteration(selectStart, selectEnd, System.nanoTime(), ready);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (ClosedSelectorException ex) {
+            // 已关闭
+        } finally {
+            running = false;
+            receiverDone = true;
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            DirectBuffers.unmap(scratch);
+            metrics.unregister();
+        }
+    }
+
+    private void consume(Ring ring) {
+        int idle = 0;
+        while (true) {
+            int n = ring.drain(handler);
+            if (n > 0) {
+                idle = 0;
+                continue;
+            }
+            if (receiverDone) {
+                // 接收线程已经退出，再处理一次它最后发布的包
+                if (ring.drain(handler) == 0) {
+                    break;
+                }
+                continue;
+            }
+            idle++;
+            if (idle < SPIN_TRIES) {
+                continue;
+            }
+            if (idle < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        ring.free();
+    }
+
+    /**
+     * 单生产者单消费者的环形缓冲区
+     * 生产者（接收线程）只写 tail，消费者（worker）只写 head
+     */
+    private static class Ring {
+        private final int mask;
+        private final ByteBuffer slab;
+        // 每个槽位一个固定的视图，复制时不分配对象
+        private final ByteBuffer[] slots;
+        private final int[] lengths;
+        private final SocketAddress[] senders;
+        // 已经发布的生产者序号
+        private final AtomicLong tail = new AtomicLong();
+        // 消费者已经处理完的序号
+        private final AtomicLong head = new AtomicLong();
+        // 生产者写到的位置，还没发布，只在接收线程中访问
+        private long pending;
+        // 生产者看到的 head，只在接收线程中访问，满了才重新读 head
+        private long cachedHead;
+
+        Ring(int size, int slotSize) {
+            this.mask = size - 1;
+            this.slab = ByteBuffer.allocateDirect(size * slotSize);
+            this.slots = new ByteBuffer[size];
+            this.lengths = new int[size];
+            this.senders = new SocketAddress[size];
+            for (int i = 0; i < size; i++) {
+                slab.limit((i + 1) * slotSize).position(i * slotSize);
+                slots[i] = slab.slice();
+            }
+        }
+
+        // 接收线程：把 datagram 剩下的内容复制到下一个槽位，满了返回 false
+        boolean offer(SocketAddress sender, ByteBuffer datagram) {
+            if (pending - cachedHead > mask) {
+                cachedHead = head.get();
+                if (pending - cachedHead > mask) {
+                    return false;
+                }
+            }
+            int index = (int) pending & mask;
+            ByteBuffer slot = slots[index];
+            slot.clear();
+            lengths[index] = datagram.remaining();
+            slot.put(datagram);
+            senders[index] = sender;
+            pending++;
+            return true;
+        }
+
+        // 接收线程：发布之前 offer 的所有槽位
+        void publish() {
+            tail.lazySet(pending);
+        }
+
+        // worker：处理所有已经发布的槽位
+        int drain(DatagramHandler handler) {
+            long from = head.get();
+            long to = tail.get();
+            for (long seq = from; seq < to; seq++) {
+                int index = (int) seq & mask;
+                ByteBuffer slot = slots[index];
+                slot.limit(lengths[index]).position(0);
+                try {
+                    handler.onDatagram(senders[index], slot);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (to > from) {
+                head.lazySet(to);
+            }
+            return (int) (to - from);
+        }
+
+        void free() {
+            DirectBuffers.unmap(slab);
+        }
+    }
+}
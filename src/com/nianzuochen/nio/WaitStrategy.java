@@ -0,0 +1,49 @@
+package com.nianzuochen.nio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 线程之间交换数据时，没有数据（或者没有空间）时怎么等
+ *
+ *      BUSY_SPIN   一直空转，延迟最低，一直占着一个核
+ *      YIELD       让出 CPU，有别的线程要运行时才真正让出，空闲时还是占着核
+ *      PARK        先空转、再 yield，一段时间没有数据后 park，空闲时不占 CPU，唤醒延迟几十微秒
+ */
+public enum WaitStrategy {
+    BUSY_SPIN {
+        @Override
+        public void idle(int attempts) {
+        }
+    },
+    YIELD {
+        @Override
+        public void idle(int attempts) {
+            Thread.yield();
+        }
+    },
+    PARK {
+        @Override
+        public void idle(int attempts) {
+            if (attempts < SPIN_TRIES) {
+                return;
+            }
+            if (attempts < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * 等待一次
+     *
+     * @param attempts 连续第几次没有等到，等到后调用方从 0 重新开始
+     */
+    public abstract void idle(int attempts);
+}